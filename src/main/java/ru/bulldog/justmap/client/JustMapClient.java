@@ -2,12 +2,15 @@ package ru.bulldog.justmap.client;
 
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.event.client.ClientTickCallback;
+import net.fabricmc.fabric.api.event.server.ServerTickCallback;
 
 import ru.bulldog.justmap.JustMap;
 import ru.bulldog.justmap.advancedinfo.AdvancedInfo;
 import ru.bulldog.justmap.client.config.ClientConfig;
+import ru.bulldog.justmap.map.data.ChunkSnapshot;
 import ru.bulldog.justmap.map.data.MapCache;
 import ru.bulldog.justmap.map.minimap.Minimap;
+import ru.bulldog.justmap.util.ColorTable;
 
 public class JustMapClient implements ClientModInitializer {
 	public final static ClientConfig CONFIG = ClientConfig.get();
@@ -18,11 +21,13 @@ public class JustMapClient implements ClientModInitializer {
 	@Override
 	public void onInitializeClient() {
 		KeyHandler.initKeyBindings();
+		ColorTable.registerReloadListener();
 
 		ClientTickCallback.EVENT.register((client) -> {
 			AdvancedInfo.getInstance().updateInfo();
 			KeyHandler.update();
 			MAP.update();
+			ChunkSnapshot.tickClient();
 
 			boolean paused = this.paused;
 			boolean online = !client.isIntegratedServerRunning() && client.currentScreen == null;
@@ -36,5 +41,8 @@ public class JustMapClient implements ClientModInitializer {
 				MapCache.saveData();
 			}
 		});
+		ServerTickCallback.EVENT.register((server) -> {
+			ChunkSnapshot.tickServer();
+		});
 	}
 }
@@ -11,6 +11,8 @@ import ru.bulldog.justmap.config.ConfigKeeper.FloatRange;
 import ru.bulldog.justmap.config.ConfigKeeper.IntegerEntry;
 import ru.bulldog.justmap.config.ConfigKeeper.IntegerRange;
 import ru.bulldog.justmap.map.DirectionArrow;
+import ru.bulldog.justmap.map.data.MapChunk;
+import ru.bulldog.justmap.map.data.MapRegion;
 import ru.bulldog.justmap.util.ScreenPosition;
 
 public class ClientConfig extends Config{
@@ -32,7 +34,7 @@ public class ClientConfig extends Config{
 		KEEPER.registerEntry("map_offset", new IntegerEntry(ClientParams.positionOffset, (i) -> ClientParams.positionOffset = i, () -> ClientParams.positionOffset));
 		KEEPER.registerEntry("map_size", new IntegerRange(ClientParams.mapSize, (i) -> ClientParams.mapSize = i, () -> ClientParams.mapSize, 16, 256));
 		KEEPER.registerEntry("big_map_size", new IntegerRange(ClientParams.bigMapSize, (i) -> ClientParams.bigMapSize = i, () -> ClientParams.bigMapSize, 256, 400));
-		KEEPER.registerEntry("map_scale", new FloatRange(ClientParams.mapScale, (f) -> ClientParams.mapScale = f, () -> ClientParams.mapScale, 0.25F, 2.0F));
+		KEEPER.registerEntry("map_scale", new FloatRange(ClientParams.mapScale, (f) -> ClientParams.mapScale = f, () -> ClientParams.mapScale, 0.25F, 8.0F));
 		KEEPER.registerEntry("map_saturation", new IntegerRange(ClientParams.mapSaturation, (i) -> ClientParams.mapSaturation = i, () -> ClientParams.mapSaturation, -50, 50));
 		KEEPER.registerEntry("map_brightness", new IntegerRange(ClientParams.mapBrightness, (i) -> ClientParams.mapBrightness = i, () -> ClientParams.mapBrightness, -50, 50));
 		KEEPER.registerEntry("rotate_map", new BooleanEntry(ClientParams.rotateMap, (b) -> ClientParams.rotateMap = b, () -> ClientParams.rotateMap));
@@ -63,9 +65,13 @@ public class ClientConfig extends Config{
 		KEEPER.registerEntry("simple_direction_arrow", new BooleanEntry(ClientParams.simpleArrow, (b) -> ClientParams.simpleArrow = b, () -> ClientParams.simpleArrow));
 		KEEPER.registerEntry("current_skin", new IntegerEntry(ClientParams.currentSkin, (i) -> ClientParams.currentSkin = i, () -> ClientParams.currentSkin));
 		KEEPER.registerEntry("chunk_update_interval", new IntegerRange(ClientParams.chunkUpdateInterval, (i) -> ClientParams.chunkUpdateInterval = i, () -> ClientParams.chunkUpdateInterval, 500, 5000));
-		KEEPER.registerEntry("chunk_level_update_interval", new IntegerRange(ClientParams.chunkLevelUpdateInterval, (i) -> ClientParams.chunkLevelUpdateInterval = i, () -> ClientParams.chunkLevelUpdateInterval, 500, 10000));
 		KEEPER.registerEntry("purge_delay", new IntegerRange(ClientParams.purgeDelay, (i) -> ClientParams.purgeDelay = i, () -> ClientParams.purgeDelay, 1, 600));
 		KEEPER.registerEntry("purge_amount", new IntegerRange(ClientParams.purgeAmount, (i) -> ClientParams.purgeAmount = i, () -> ClientParams.purgeAmount, 100, 50000));
+		KEEPER.registerEntry("chunk_threads", new IntegerRange(ClientParams.chunkThreads, (i) -> ClientParams.chunkThreads = i, () -> ClientParams.chunkThreads, 1, 16));
+		KEEPER.registerEntry("region_threads", new IntegerRange(ClientParams.regionThreads, (i) -> ClientParams.regionThreads = i, () -> ClientParams.regionThreads, 1, 8));
+		KEEPER.registerEntry("gpu_cache_size", new IntegerRange(ClientParams.gpuCacheSize, (i) -> ClientParams.gpuCacheSize = i, () -> ClientParams.gpuCacheSize, 32, 2048));
+		KEEPER.registerEntry("heap_cache_size", new IntegerRange(ClientParams.heapCacheSize, (i) -> ClientParams.heapCacheSize = i, () -> ClientParams.heapCacheSize, 8, 1024));
+		KEEPER.registerEntry("texture_compression", new BooleanEntry(ClientParams.textureCompression, (b) -> ClientParams.textureCompression = b, () -> ClientParams.textureCompression));
 		KEEPER.registerEntry("show_terrain", new BooleanEntry(ClientParams.showTerrain, (b) -> ClientParams.showTerrain = b, () -> ClientParams.showTerrain));
 		KEEPER.registerEntry("show_topography", new BooleanEntry(ClientParams.showTopography, (b) -> ClientParams.showTopography = b, () -> ClientParams.showTopography));
 		KEEPER.registerEntry("terrain_strength", new IntegerRange(ClientParams.terrainStrength, (i) -> ClientParams.terrainStrength = i, () -> ClientParams.terrainStrength, 2, 9));
@@ -90,6 +96,7 @@ public class ClientConfig extends Config{
 		KEEPER.registerEntry("show_icons_outline", new BooleanEntry(ClientParams.showIconsOutline, (b) -> ClientParams.showIconsOutline = b, () -> ClientParams.showIconsOutline));
 		KEEPER.registerEntry("show_big_map", new BooleanEntry(ClientParams.showBigMap, (b) -> ClientParams.showBigMap = b, () -> ClientParams.showBigMap));
 		KEEPER.registerEntry("force_map_update", new BooleanEntry(ClientParams.forceUpdate, (b) -> ClientParams.forceUpdate = b, () -> ClientParams.forceUpdate));
+		KEEPER.registerEntry("chunk_polling", new BooleanEntry(ClientParams.chunkPolling, (b) -> ClientParams.chunkPolling = b, () -> ClientParams.chunkPolling));
 		KEEPER.registerEntry("show_slime", new BooleanEntry(ClientParams.showSlime, (b) -> ClientParams.showSlime = b, () -> ClientParams.showSlime));
 		KEEPER.registerEntry("show_loaded_chunks", new BooleanEntry(ClientParams.showLoadedChunks, (b) -> ClientParams.showLoadedChunks = b, () -> ClientParams.showLoadedChunks));
 		KEEPER.registerEntry("entity_icon_size", new IntegerRange(ClientParams.entityIconSize, (i) -> ClientParams.entityIconSize = i, () -> ClientParams.entityIconSize, 2, 16));
@@ -112,5 +119,7 @@ public class ClientConfig extends Config{
 	public void saveChanges()  {
 		ConfigWriter.save(KEEPER.toJson());
 		JustMapClient.MAP.updateMapParams();
+		MapChunk.setUpdateThreads(ClientParams.chunkThreads);
+		MapRegion.setUpdateThreads(ClientParams.regionThreads);
 	}
 }
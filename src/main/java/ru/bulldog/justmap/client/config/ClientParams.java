@@ -20,6 +20,7 @@ public class ClientParams {
 	public static boolean showInChat = false;
 	public static boolean showBigMap = false;
 	public static boolean forceUpdate = false;
+	public static boolean chunkPolling = false;
 
 	public static boolean drawCaves = true;
 	public static boolean hidePlants = false;
@@ -73,9 +74,13 @@ public class ClientParams {
 	public static int entityOutlineSize = 1;
 	
 	public static int chunkUpdateInterval = 1000;
-	public static int chunkLevelUpdateInterval = 3000;
 	public static int purgeDelay = 60;
 	public static int purgeAmount = 1500;
+	public static int chunkThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	public static int regionThreads = 2;
+	public static int gpuCacheSize = 256;
+	public static int heapCacheSize = 64;
+	public static boolean textureCompression = false;
 	
 	public static boolean showWaypoints = true;
 	public static boolean waypointsTracking = true;
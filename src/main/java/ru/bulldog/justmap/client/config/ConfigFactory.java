@@ -339,10 +339,6 @@ public final class ConfigFactory {
 				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("chunk_update_interval", val))
 				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("chunk_update_interval"))
 				.setMin(500).setMax(5000).build());
-		optimization.addEntry(entryBuilder.startIntField(lang("chunk_level_update_interval"), JustMapClient.CONFIG.getInt("chunk_level_update_interval"))
-				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("chunk_level_update_interval", val))
-				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("chunk_level_update_interval"))
-				.setMin(500).setMax(10000).build());
 		optimization.addEntry(entryBuilder.startIntField(lang("purge_delay"), JustMapClient.CONFIG.getInt("purge_delay"))
 				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("purge_delay", val))
 				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("purge_delay"))
@@ -351,10 +347,34 @@ public final class ConfigFactory {
 				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("purge_amount", val))
 				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("purge_amount"))
 				.setMin(100).setMax(5000).build());
+		optimization.addEntry(entryBuilder.startIntSlider(lang("chunk_threads"), JustMapClient.CONFIG.getInt("chunk_threads"), 1, 16)
+				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("chunk_threads", val))
+				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("chunk_threads"))
+				.build());
+		optimization.addEntry(entryBuilder.startIntSlider(lang("region_threads"), JustMapClient.CONFIG.getInt("region_threads"), 1, 8)
+				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("region_threads", val))
+				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("region_threads"))
+				.build());
+		optimization.addEntry(entryBuilder.startIntField(lang("gpu_cache_size"), JustMapClient.CONFIG.getInt("gpu_cache_size"))
+				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("gpu_cache_size", val))
+				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("gpu_cache_size"))
+				.setMin(32).setMax(2048).build());
+		optimization.addEntry(entryBuilder.startIntField(lang("heap_cache_size"), JustMapClient.CONFIG.getInt("heap_cache_size"))
+				.setSaveConsumer(val -> JustMapClient.CONFIG.setRanged("heap_cache_size", val))
+				.setDefaultValue((int) JustMapClient.CONFIG.getDefault("heap_cache_size"))
+				.setMin(8).setMax(1024).build());
+		optimization.addEntry(entryBuilder.startBooleanToggle(lang("texture_compression"), JustMapClient.CONFIG.getBoolean("texture_compression"))
+				.setSaveConsumer(val -> JustMapClient.CONFIG.setBoolean("texture_compression", val))
+				.setDefaultValue((boolean) JustMapClient.CONFIG.getDefault("texture_compression"))
+				.build());
 		optimization.addEntry(entryBuilder.startBooleanToggle(lang("uninterrupted_map_update"), JustMapClient.CONFIG.getBoolean("force_map_update"))
 				.setSaveConsumer(val -> JustMapClient.CONFIG.setBoolean("force_map_update", val))
 				.setDefaultValue((boolean) JustMapClient.CONFIG.getDefault("force_map_update"))
 				.build());
+		optimization.addEntry(entryBuilder.startBooleanToggle(lang("chunk_polling"), JustMapClient.CONFIG.getBoolean("chunk_polling"))
+				.setSaveConsumer(val -> JustMapClient.CONFIG.setBoolean("chunk_polling", val))
+				.setDefaultValue((boolean) JustMapClient.CONFIG.getDefault("chunk_polling"))
+				.build());
 		
 		configBuilder.setDoesConfirmSave(false);
 		configBuilder.transparentBackground();
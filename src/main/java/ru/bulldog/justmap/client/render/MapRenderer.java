@@ -9,8 +9,8 @@ import ru.bulldog.justmap.advancedinfo.TextManager;
 import ru.bulldog.justmap.client.JustMapClient;
 import ru.bulldog.justmap.client.config.ClientParams;
 import ru.bulldog.justmap.map.DirectionArrow;
+import ru.bulldog.justmap.map.data.LodRegion;
 import ru.bulldog.justmap.map.data.MapCache;
-import ru.bulldog.justmap.map.data.MapRegion;
 import ru.bulldog.justmap.map.icon.EntityIcon;
 import ru.bulldog.justmap.map.icon.PlayerIcon;
 import ru.bulldog.justmap.map.icon.WaypointIcon;
@@ -335,6 +335,12 @@ public class MapRenderer {
 		
 		float scale = minimap.getScale();
 		
+		int lod = LodRegion.lodLevel(scale);
+		int size = 512 << lod;
+		if (lod > 0) {
+			mapData.updateLoadedRegions(false);
+		}
+		
 		int picX = 0, picW = 0;
 		while(picX < scaledW) {
 			int cX = cornerX + picX;
@@ -342,27 +348,30 @@ public class MapRenderer {
 			while (picY < scaledH ) {				
 				int cZ = cornerZ + picY;
 				
-				MapRegion region = mapData.getRegion(new BlockPos(cX, 0, cZ));
-				
-				picW = 512;
-				picH = 512;
-				int imgX = cX - (region.getX() << 9);
-				int imgY = cZ - (region.getZ() << 9);
+				picW = size;
+				picH = size;
+				int imgX = cX & (size - 1);
+				int imgY = cZ & (size - 1);
 				
 				if (picX + picW >= right) picW = right - picX;
 				if (picY + picH >= bottom) picH = bottom - picY;
-				if (imgX + picW >= 512) picW = 512 - imgX;
-				if (imgY + picH >= 512) picH = 512 - imgY;
+				if (imgX + picW >= size) picW = size - imgX;
+				if (imgY + picH >= size) picH = size - imgY;
 				
 				double scX = (picX - 4) / scale;
 				double scY = (picY - 4) / scale;
 				
-				region.draw(this.imgX + scX, this.imgY + scY, imgX, imgY, picW, picH, scale);
+				BlockPos pos = new BlockPos(cX, 0, cZ);
+				if (lod > 0) {
+					mapData.getLodRegion(pos, lod, false).draw(this.imgX + scX, this.imgY + scY, imgX, imgY, picW, picH, scale);
+				} else {
+					mapData.getRegion(pos).draw(this.imgX + scX, this.imgY + scY, imgX, imgY, picW, picH, scale);
+				}
 				
-				picY += picH > 0 ? picH : 512;
+				picY += picH > 0 ? picH : size;
 			}
 			
-			picX += picW > 0 ? picW : 512;
+			picX += picW > 0 ? picW : size;
 		}
 	}
 }
\ No newline at end of file
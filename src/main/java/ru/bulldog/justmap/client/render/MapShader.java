@@ -0,0 +1,108 @@
+package ru.bulldog.justmap.client.render;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL20;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.resource.Resource;
+import net.minecraft.util.Identifier;
+
+import ru.bulldog.justmap.JustMap;
+import ru.bulldog.justmap.client.config.ClientParams;
+
+public class MapShader {
+	private MapShader() {}
+	
+	private static int program = -1;
+	private static boolean failed = false;
+	private static int saturationUniform;
+	private static int brightnessUniform;
+	private static int terrainUniform;
+	private static int topographyUniform;
+	
+	public static boolean isAvailable() {
+		if (program == -1 && !failed) {
+			init();
+		}
+		return !failed;
+	}
+	
+	public static void begin(int colorsId, int shadeId) {
+		RenderSystem.activeTexture(GL13.GL_TEXTURE1);
+		RenderSystem.bindTexture(shadeId);
+		RenderSystem.activeTexture(GL13.GL_TEXTURE0);
+		RenderSystem.bindTexture(colorsId);
+		
+		GL20.glUseProgram(program);
+		GL20.glUniform1f(saturationUniform, ClientParams.mapSaturation / 100.0F);
+		GL20.glUniform1f(brightnessUniform, ClientParams.mapBrightness / 100.0F);
+		GL20.glUniform1f(terrainUniform, ClientParams.showTerrain ? ClientParams.terrainStrength : 0.0F);
+		GL20.glUniform1f(topographyUniform, ClientParams.showTopography ? 1.0F : 0.0F);
+	}
+	
+	public static void end() {
+		GL20.glUseProgram(0);
+	}
+	
+	private static void init() {
+		try {
+			int vertex = compile(GL20.GL_VERTEX_SHADER, "map_region.vsh");
+			int fragment = compile(GL20.GL_FRAGMENT_SHADER, "map_region.fsh");
+			
+			int shaderProgram = GL20.glCreateProgram();
+			GL20.glAttachShader(shaderProgram, vertex);
+			GL20.glAttachShader(shaderProgram, fragment);
+			GL20.glLinkProgram(shaderProgram);
+			GL20.glDeleteShader(vertex);
+			GL20.glDeleteShader(fragment);
+			if (GL20.glGetProgrami(shaderProgram, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+				String log = GL20.glGetProgramInfoLog(shaderProgram, 1024);
+				GL20.glDeleteProgram(shaderProgram);
+				throw new IllegalStateException(log);
+			}
+			
+			GL20.glUseProgram(shaderProgram);
+			GL20.glUniform1i(GL20.glGetUniformLocation(shaderProgram, "colors"), 0);
+			GL20.glUniform1i(GL20.glGetUniformLocation(shaderProgram, "shade"), 1);
+			GL20.glUseProgram(0);
+			
+			saturationUniform = GL20.glGetUniformLocation(shaderProgram, "saturation");
+			brightnessUniform = GL20.glGetUniformLocation(shaderProgram, "brightness");
+			terrainUniform = GL20.glGetUniformLocation(shaderProgram, "terrain");
+			topographyUniform = GL20.glGetUniformLocation(shaderProgram, "topography");
+			program = shaderProgram;
+		} catch (Exception ex) {
+			JustMap.LOGGER.logWarning("Map shader is not available, map shading will be done on CPU.");
+			JustMap.LOGGER.logWarning(ex.getLocalizedMessage());
+			failed = true;
+		}
+	}
+	
+	private static int compile(int type, String name) throws IOException {
+		Identifier location = new Identifier(JustMap.MODID, "shaders/" + name);
+		String source;
+		try (Resource resource = MinecraftClient.getInstance().getResourceManager().getResource(location);
+			 InputStream input = resource.getInputStream()) {
+			source = IOUtils.toString(input, StandardCharsets.UTF_8);
+		}
+		
+		int shader = GL20.glCreateShader(type);
+		GL20.glShaderSource(shader, source);
+		GL20.glCompileShader(shader);
+		if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+			String log = GL20.glGetShaderInfoLog(shader, 1024);
+			GL20.glDeleteShader(shader);
+			throw new IllegalStateException(name + ": " + log);
+		}
+		
+		return shader;
+	}
+}
@@ -1,20 +1,28 @@
 package ru.bulldog.justmap.client.render;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 
+import org.lwjgl.opengl.EXTTextureCompressionS3TC;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL13;
 import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLCapabilities;
 
 import com.mojang.blaze3d.systems.RenderSystem;
 
@@ -23,25 +31,90 @@ import net.minecraft.client.texture.TextureUtil;
 import ru.bulldog.justmap.JustMap;
 import ru.bulldog.justmap.util.ColorUtil;
 import ru.bulldog.justmap.util.Colors;
+import ru.bulldog.justmap.util.ImageUtil;
 
 public class MapTexture {
-
-	private ByteBuffer buffer;
-	private byte[] bytes;
+	
+	private final static long COMPRESS_DELAY = 30000;
+	
+	private static int pixelBuffer = -1;
+	private static Boolean pboSupported;
+	private static Boolean s3tcSupported;
+	private static Boolean rgb565Supported;
+	private static ByteBuffer staging;
+	
+	private final Format format;
+	private final ByteBuffer buffer;
+	private final IntBuffer pixels;
 	private int glId = -1;
+	private boolean allocated = false;
+	private boolean compressed = false;
 	private final int width;
 	private final int height;
+	private final int tilesX;
+	private final long[] dirtyTiles;
+	private long revision = 0;
+	private volatile long modified = System.currentTimeMillis();
+	private volatile boolean packing = false;
+	private ByteBuffer packed;
+	private long packedRevision;
 	
 	public boolean changed = false;
 	
 	private Object bufferLock = new Object();
 	
 	public MapTexture(int width, int height) {
-		int size = 4 * width * (height - 1) + 4 * width;		
-		this.bytes = new byte[size];
-		this.buffer = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+		this(width, height, Format.RGBA);
+	}
+	
+	public MapTexture(int width, int height, Format format) {
+		this.format = format;
+		this.buffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+		this.pixels = this.buffer.asIntBuffer();
 		this.width = width;
 		this.height = height;
+		this.tilesX = (width + 15) >> 4;
+		int tiles = tilesX * ((height + 15) >> 4);
+		this.dirtyTiles = new long[(tiles + 63) >> 6];
+	}
+	
+	private static int toRGBA(int argb) {
+		return Integer.rotateLeft(argb, 8);
+	}
+	
+	private static int toARGB(int rgba) {
+		return Integer.rotateRight(rgba, 8);
+	}
+	
+	private int get(int index) {
+		return toARGB(this.pixels.get(index));
+	}
+	
+	private void put(int index, int argb) {
+		this.pixels.put(index, toRGBA(argb));
+	}
+	
+	private void getRow(int index, int[] argb, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			argb[offset + i] = this.get(index + i);
+		}
+	}
+	
+	private void putRow(int index, int[] argb, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			this.put(index + i, argb[offset + i]);
+		}
+	}
+	
+	public Format getFormat() {
+		return this.format;
+	}
+	
+	public long memoryUsage() {
+		if (compressed) {
+			return (long) width * height / 2;
+		}
+		return (long) width * height * format.bytes;
 	}
 	
 	public int getId() {
@@ -51,10 +124,9 @@ public class MapTexture {
 	public void upload() {
 		if (this.glId == -1) {
 			this.glId = TextureUtil.generateId();
+			this.allocated = false;
 		}
 		
-		this.refillBuffer();
-		
 		RenderSystem.bindTexture(this.glId);
 		RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
 		RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
@@ -64,48 +136,272 @@ public class MapTexture {
 		RenderSystem.pixelStore(GL11.GL_UNPACK_ROW_LENGTH, GL11.GL_ZERO);
 		RenderSystem.pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, GL11.GL_ZERO);
 		RenderSystem.pixelStore(GL11.GL_UNPACK_SKIP_ROWS, GL11.GL_ZERO);
+		RenderSystem.pixelStore(GL11.GL_UNPACK_ALIGNMENT, format.bytes);
+		
+		ByteBuffer data = this.takePacked();
+		if (data != null) {
+			RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, 0);
+			GL13.glCompressedTexImage2D(GL11.GL_TEXTURE_2D, GL11.GL_ZERO, EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT, width, height, GL11.GL_ZERO, data);
+			this.compressed = true;
+			this.allocated = true;
+		} else if (!allocated || compressed) {
+			ByteBuffer source = this.buffer;
+			synchronized(bufferLock) {
+				if (format == Format.RGB565) {
+					source = this.packRGB565(0, 0, width, height);
+				}
+				Arrays.fill(dirtyTiles, 0L);
+				this.changed = false;
+			}
+			RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, 1000);
+			GL11.glTexImage2D(GL11.GL_TEXTURE_2D, GL11.GL_ZERO, this.internalFormat(), this.getWidth(), this.getHeight(), GL11.GL_ZERO, format.pixel, format.type, source);
+			this.compressed = false;
+			this.allocated = true;
+		} else if (isPboSupported()) {
+			this.uploadStreamed();
+		} else {
+			this.uploadDirect();
+		}
+		RenderSystem.pixelStore(GL11.GL_UNPACK_ALIGNMENT, 4);
+	}
+	
+	private ByteBuffer takePacked() {
+		synchronized(bufferLock) {
+			ByteBuffer data = this.packed;
+			this.packed = null;
+			if (data == null || packedRevision != revision) return null;
+			
+			Arrays.fill(dirtyTiles, 0L);
+			this.changed = false;
+			
+			return data;
+		}
+	}
+	
+	public void compress() {
+		if (compressed || packing) return;
+		if ((width & 3) != 0 || (height & 3) != 0) return;
+		if (System.currentTimeMillis() - modified < COMPRESS_DELAY) return;
+		if (!isS3tcSupported()) return;
+		
+		this.packing = true;
+		JustMap.WORKER.execute(() -> {
+			int[] argb;
+			long revision;
+			synchronized(bufferLock) {
+				revision = this.revision;
+				argb = this.getPixels();
+			}
+			ByteBuffer data = ImageUtil.compressDXT1(argb, width, height);
+			synchronized(bufferLock) {
+				this.packed = data;
+				this.packedRevision = revision;
+				this.changed = true;
+			}
+			this.packing = false;
+		});
+	}
+	
+	private void uploadDirect() {
+		List<int[]> regions;
+		synchronized(bufferLock) {
+			regions = this.collectDirty();
+		}
+		if (regions.isEmpty()) return;
+		
+		if (format == Format.RGB565) {
+			for (int[] region : regions) {
+				ByteBuffer data;
+				synchronized(bufferLock) {
+					data = this.packRGB565(region[0], region[1], region[2], region[3]);
+				}
+				GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, GL11.GL_ZERO, region[0], region[1], region[2], region[3], format.pixel, format.type, data);
+			}
+			return;
+		}
+		RenderSystem.pixelStore(GL11.GL_UNPACK_ROW_LENGTH, width);
+		for (int[] region : regions) {
+			RenderSystem.pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, region[0]);
+			RenderSystem.pixelStore(GL11.GL_UNPACK_SKIP_ROWS, region[1]);
+			GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, GL11.GL_ZERO, region[0], region[1], region[2], region[3], format.pixel, format.type, this.buffer);
+		}
+		RenderSystem.pixelStore(GL11.GL_UNPACK_ROW_LENGTH, GL11.GL_ZERO);
+		RenderSystem.pixelStore(GL11.GL_UNPACK_SKIP_PIXELS, GL11.GL_ZERO);
+		RenderSystem.pixelStore(GL11.GL_UNPACK_SKIP_ROWS, GL11.GL_ZERO);
+	}
+	
+	private void uploadStreamed() {
+		if (pixelBuffer == -1) {
+			pixelBuffer = GL15.glGenBuffers();
+		}
+		
+		List<int[]> regions;
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, pixelBuffer);
+		synchronized(bufferLock) {
+			regions = this.collectDirty();
+			if (regions.isEmpty()) {
+				GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+				return;
+			}
+			
+			int size = 0;
+			for (int[] region : regions) {
+				size += region[2] * region[3] * format.bytes;
+			}
+			GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, size, GL15.GL_STREAM_DRAW);
+			ByteBuffer stream = GL15.glMapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, GL15.GL_WRITE_ONLY, size, null);
+			if (stream == null) {
+				GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+				for (int[] region : regions) {
+					this.markDirty(region[0], region[1], region[2], region[3]);
+				}
+				this.changed = true;
+				pboSupported = false;
+				return;
+			}
+			stream.order(ByteOrder.nativeOrder());
+			ByteBuffer source = this.buffer.duplicate();
+			for (int[] region : regions) {
+				if (format == Format.RGB565) {
+					this.writeRGB565(stream, region[0], region[1], region[2], region[3]);
+					continue;
+				}
+				for (int row = region[1]; row < region[1] + region[3]; row++) {
+					int index = (region[0] + row * width) * 4;
+					source.limit(index + region[2] * 4).position(index);
+					stream.put(source);
+				}
+			}
+			GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+		}
 		
-		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, GL11.GL_ZERO, GL11.GL_RGBA, this.getWidth(), this.getHeight(), GL11.GL_ZERO, GL11.GL_RGBA, GL12.GL_UNSIGNED_INT_8_8_8_8, this.buffer);
+		long offset = 0;
+		for (int[] region : regions) {
+			GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, GL11.GL_ZERO, region[0], region[1], region[2], region[3], format.pixel, format.type, offset);
+			offset += region[2] * region[3] * format.bytes;
+		}
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
 	
+	private ByteBuffer packRGB565(int x, int y, int w, int h) {
+		int size = w * h * 2;
+		if (staging == null || staging.capacity() < size) {
+			staging = ByteBuffer.allocateDirect(Math.max(size, 512 * 512 * 2)).order(ByteOrder.nativeOrder());
+		}
+		staging.clear();
+		this.writeRGB565(staging, x, y, w, h);
+		staging.flip();
+		
+		return staging;
+	}
+	
+	private void writeRGB565(ByteBuffer target, int x, int y, int w, int h) {
+		for (int j = y; j < y + h; j++) {
+			int index = x + j * width;
+			for (int i = 0; i < w; i++) {
+				target.putShort((short) ColorUtil.toRGB565(this.get(index + i)));
+			}
+		}
+	}
+	
+	private List<int[]> collectDirty() {
+		List<int[]> regions = new ArrayList<>();
+		int tilesY = (height + 15) >> 4;
+		for (int ty = 0; ty < tilesY; ty++) {
+			int start = -1;
+			for (int tx = 0; tx <= tilesX; tx++) {
+				int index = tx + ty * tilesX;
+				boolean dirty = tx < tilesX && (dirtyTiles[index >> 6] & (1L << (index & 63))) != 0L;
+				if (dirty && start == -1) {
+					start = tx;
+				} else if (!dirty && start != -1) {
+					int x = start << 4;
+					int y = ty << 4;
+					regions.add(new int[] { x, y, Math.min(tx << 4, width) - x, Math.min(y + 16, height) - y });
+					start = -1;
+				}
+			}
+		}
+		Arrays.fill(dirtyTiles, 0L);
 		this.changed = false;
+		
+		return regions;
+	}
+	
+	private void markDirty(int x, int y, int w, int h) {
+		for (int ty = y >> 4; ty <= (y + h - 1) >> 4; ty++) {
+			for (int tx = x >> 4; tx <= (x + w - 1) >> 4; tx++) {
+				int index = tx + ty * tilesX;
+				this.dirtyTiles[index >> 6] |= 1L << (index & 63);
+			}
+		}
+		this.revision++;
+		this.modified = System.currentTimeMillis();
+	}
+	
+	private void markAllDirty() {
+		Arrays.fill(dirtyTiles, -1L);
+		this.revision++;
+		this.modified = System.currentTimeMillis();
+	}
+	
+	private static boolean isPboSupported() {
+		if (pboSupported == null) {
+			GLCapabilities capabilities = GL.getCapabilities();
+			pboSupported = capabilities.OpenGL21 || capabilities.GL_ARB_pixel_buffer_object;
+		}
+		return pboSupported;
+	}
+	
+	private static boolean isRGB565Supported() {
+		if (rgb565Supported == null) {
+			GLCapabilities capabilities = GL.getCapabilities();
+			rgb565Supported = capabilities.OpenGL41 || capabilities.GL_ARB_ES2_compatibility;
+		}
+		return rgb565Supported;
+	}
+	
+	private int internalFormat() {
+		if (format == Format.RGB565 && isRGB565Supported()) {
+			return GL41.GL_RGB565;
+		}
+		return format.internal;
+	}
+	
+	private static boolean isS3tcSupported() {
+		if (s3tcSupported == null) {
+			s3tcSupported = GL.getCapabilities().GL_EXT_texture_compression_s3tc;
+		}
+		return s3tcSupported;
 	}
 	
 	public int getHeight() {
 		return this.height;
 	}
-
+	
 	public int getWidth() {
 		return this.width;
 	}
-
-	private byte[] getBytes() {
-		synchronized(bufferLock) {
-			return this.bytes.clone();
-		}
-	}
 	
-	public void copyData(MapTexture image) {
-		synchronized(bufferLock) {
-			this.bytes = image.getBytes();
-		}
+	public void blitChunk(int x, int y, int[] argb) {
+		this.blit(x, y, 16, 16, argb);
 	}
 	
-	public void writeChunkData(int x, int y, int[] colorData) {
-		for (int i = 0; i < 16; i++) {
-			int px = i + x;
-			
-			if (px >= this.getWidth()) break;
-			if (px < 0) continue;
-			
-			for (int j = 0; j < 16; j++) {
-				int py = j + y;
-				
-				if (py >= this.getHeight()) break;
-				if (py < 0) continue;
-				
-				int color = colorData[i + (j << 4)];
-				this.setColor(px, py, color);
+	public void blit(int x, int y, int w, int h, int[] argb) {
+		int left = Math.max(0, -x);
+		int right = Math.min(w, width - x);
+		if (left >= right) return;
+		
+		int top = Math.max(0, -y);
+		int bottom = Math.min(h, height - y);
+		if (top >= bottom) return;
+		
+		synchronized(bufferLock) {
+			for (int j = top; j < bottom; j++) {
+				this.putRow(x + left + (y + j) * width, argb, left + j * w, right - left);
 			}
+			this.markDirty(x + left, y + top, right - left, bottom - top);
+			this.changed = true;
 		}
 	}
 	
@@ -113,30 +409,58 @@ public class MapTexture {
 		if (x < 0 || x >= this.getWidth()) return;
 		if (y < 0 || y >= this.getHeight()) return;
 		
-		int index = (x + y * this.getWidth()) * 4;		
 		synchronized(bufferLock) {
-			this.bytes[index] = (byte) (color >> 24);
-			this.bytes[index + 1] = (byte) (color >> 0);
-			this.bytes[index + 2] = (byte) (color >> 8);
-			this.bytes[index + 3] = (byte) (color >> 16);
+			this.put(x + y * width, color);
+			this.markDirty(x, y, 1, 1);
+			this.changed = true;
 		}
-		
-		this.changed = true;
 	}
 	
 	public int getColor(int x, int y) {
 		if (x < 0 || x >= this.getWidth()) return -1;
 		if (y < 0 || y >= this.getHeight()) return -1;
 		
-		int index = (x + y * this.getWidth()) * 4;
+		synchronized(bufferLock) {
+			return this.get(x + y * width);
+		}
+	}
+	
+	public int[] getPixels() {
+		int[] pixels = new int[width * height];
+		synchronized(bufferLock) {
+			this.getRow(0, pixels, 0, pixels.length);
+		}
 		
+		return pixels;
+	}
+	
+	public void setPixels(int[] pixels) {
 		synchronized(bufferLock) {
-			int a = this.bytes[index];
-			int b = this.bytes[index + 1];
-			int g = this.bytes[index + 2];
-			int r = this.bytes[index + 3];
-			
-			return (a << 24) | (b << 16) | (g << 8) | (r << 0);
+			this.putRow(0, pixels, 0, Math.min(pixels.length, width * height));
+			this.markAllDirty();
+			this.changed = true;
+		}
+	}
+	
+	public void getTile(int x, int y, int size, byte[] tile, int offset) {
+		synchronized(bufferLock) {
+			ByteBuffer source = this.buffer.duplicate();
+			for (int j = 0; j < size; j++) {
+				source.position((x + (y + j) * width) * 4);
+				source.get(tile, offset + j * size * 4, size * 4);
+			}
+		}
+	}
+	
+	public void setTile(int x, int y, int size, byte[] tile, int offset) {
+		synchronized(bufferLock) {
+			ByteBuffer target = this.buffer.duplicate();
+			for (int j = 0; j < size; j++) {
+				target.position((x + (y + j) * width) * 4);
+				target.put(tile, offset + j * size * 4, size * 4);
+			}
+			this.markDirty(x, y, size, size);
+			this.changed = true;
 		}
 	}
 	
@@ -168,38 +492,27 @@ public class MapTexture {
 		
 		if (width <= 0 || height <= 0) return;
 		
+		int[] row = new int[width];
+		Arrays.fill(row, toRGBA(color));
 		synchronized(bufferLock) {
-			for(int i = x; i < x + width; i++) {
-				for (int j = y; j < y + height; j++) {
-					this.setColor(i, j, color);
-				}
+			for (int j = y; j < y + height; j++) {
+				this.pixels.position(x + j * this.width);
+				this.pixels.put(row);
 			}
-		}
-	}
-	
-	public void saveImage(File png) {
-		try (OutputStream fileOut = new FileOutputStream(png)) {
-			BufferedImage pngImage = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-			byte[] data = ((DataBufferByte) pngImage.getTile(0, 0).getDataBuffer()).getData();
-			byte[] bytes = this.getBytes();
-			for (int i = 0; i < bytes.length; i++) {
-				data[i] = bytes[i];
-			}
-			ImageIO.write(pngImage, "png", fileOut);
-			pngImage.flush();
-		} catch (Exception ex) {
-			JustMap.LOGGER.logWarning("Can't save image: " + png.toString());
-			JustMap.LOGGER.logWarning(ex.getLocalizedMessage());
+			this.markDirty(x, y, width, height);
+			this.changed = true;
 		}
 	}
 	
 	public void loadImage(File png) {
 		if (!png.exists()) return;
 		try (InputStream fileInput = new FileInputStream(png)) {
-			BufferedImage pngImage = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-			pngImage.setData(ImageIO.read(fileInput).getData());
-			this.bytes = ((DataBufferByte) pngImage.getTile(0, 0).getDataBuffer()).getData().clone();
-			this.changed = true;
+			BufferedImage pngImage = ImageIO.read(fileInput);
+			int w = Math.min(width, pngImage.getWidth());
+			int h = Math.min(height, pngImage.getHeight());
+			int[] argb = new int[width * height];
+			pngImage.getRGB(0, 0, w, h, argb, 0, width);
+			this.setPixels(argb);
 			pngImage.flush();
 		} catch (Exception ex) {
 			JustMap.LOGGER.logWarning("Can't load image: " + png.toString());
@@ -213,10 +526,7 @@ public class MapTexture {
 	}
 	
 	public void close() {
-		this.clearId();		
-		synchronized(bufferLock) {
-			this.buffer.clear();
-		}
+		this.clearId();
 	}
 	
 	private void clearId() {
@@ -225,19 +535,32 @@ public class MapTexture {
 				if (this.glId != -1) {
 					TextureUtil.deleteId(this.glId);
 					this.glId = -1;
+					this.allocated = false;
+					this.compressed = false;
 				}
 			});
 		} else if (this.glId != -1) {
 			TextureUtil.deleteId(this.glId);
 			this.glId = -1;
+			this.allocated = false;
+			this.compressed = false;
 		}
 	}
 	
-	private void refillBuffer() {
-		synchronized(bufferLock) {
-			this.buffer.clear();
-			this.buffer.put(this.bytes);
-			this.buffer.position(0).limit(bytes.length);
+	public enum Format {
+		RGBA(4, GL11.GL_RGBA, GL11.GL_RGBA, GL12.GL_UNSIGNED_INT_8_8_8_8),
+		RGB565(2, GL11.GL_RGB5, GL11.GL_RGB, GL12.GL_UNSIGNED_SHORT_5_6_5);
+		
+		private final int bytes;
+		private final int internal;
+		private final int pixel;
+		private final int type;
+		
+		Format(int bytes, int internal, int pixel, int type) {
+			this.bytes = bytes;
+			this.internal = internal;
+			this.pixel = pixel;
+			this.type = type;
 		}
 	}
 }
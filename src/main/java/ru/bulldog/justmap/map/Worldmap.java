@@ -23,9 +23,9 @@ import ru.bulldog.justmap.client.MapScreen;
 import ru.bulldog.justmap.client.config.ClientParams;
 import ru.bulldog.justmap.client.config.ConfigFactory;
 import ru.bulldog.justmap.map.data.Layer;
+import ru.bulldog.justmap.map.data.LodRegion;
 import ru.bulldog.justmap.map.data.MapCache;
 import ru.bulldog.justmap.map.data.MapChunk;
-import ru.bulldog.justmap.map.data.MapRegion;
 import ru.bulldog.justmap.map.icon.WaypointIcon;
 import ru.bulldog.justmap.map.minimap.MapPlayerManager;
 import ru.bulldog.justmap.map.waypoint.Waypoint;
@@ -161,6 +161,12 @@ public class Worldmap extends MapScreen implements IMap {
 		int cornerX = centerPos.getX() - scaledWidth / 2;
 		int cornerZ = centerPos.getZ() - scaledHeight / 2;
 		
+		int lod = LodRegion.lodLevel(imageScale);
+		int size = 512 << lod;
+		if (lod > 0) {
+			mapData.updateLoadedRegions(surfaceOnly);
+		}
+		
 		int picX = 0, picW = 0;
 		while(picX < scaledWidth) {
 			int cX = cornerX + picX;
@@ -168,27 +174,30 @@ public class Worldmap extends MapScreen implements IMap {
 			while (picY < scaledHeight) {				
 				int cZ = cornerZ + picY;
 				
-				MapRegion region = mapData.getRegion(new BlockPos(cX, 0, cZ), surfaceOnly);
-				
-				picW = 512;
-				picH = 512;
-				int imgX = cX - (region.getX() << 9);
-				int imgY = cZ - (region.getZ() << 9);
+				picW = size;
+				picH = size;
+				int imgX = cX & (size - 1);
+				int imgY = cZ & (size - 1);
 				
 				if (picX + picW >= scaledWidth) picW = (int) (scaledWidth - picX);
 				if (picY + picH >= scaledHeight) picH = (int) (scaledHeight - picY);
-				if (imgX + picW >= 512) picW = 512 - imgX;
-				if (imgY + picH >= 512) picH = 512 - imgY;
+				if (imgX + picW >= size) picW = size - imgX;
+				if (imgY + picH >= size) picH = size - imgY;
 				
 				double scX = picX / imageScale;
 				double scY = picY / imageScale;
 				
-				region.draw(scX, scY, imgX, imgY, picW, picH, imageScale);
+				BlockPos pos = new BlockPos(cX, 0, cZ);
+				if (lod > 0) {
+					mapData.getLodRegion(pos, lod, surfaceOnly).draw(scX, scY, imgX, imgY, picW, picH, imageScale);
+				} else {
+					mapData.getRegion(pos, surfaceOnly).draw(scX, scY, imgX, imgY, picW, picH, imageScale);
+				}
 				
-				picY += picH > 0 ? picH : 512;
+				picY += picH > 0 ? picH : size;
 			}
 			
-			picX += picW > 0 ? picW : 512;
+			picX += picW > 0 ? picW : size;
 		}
 	}
 	
@@ -216,18 +225,13 @@ public class Worldmap extends MapScreen implements IMap {
 	private void updateScale() {
 		this.scaledWidth = (int) Math.ceil(width * imageScale);
 		this.scaledHeight = (int) Math.ceil(height * imageScale);		
-		if (scaledWidth > 2580) {
-			this.imageScale = 2580F / width;
-			this.updateScale();
-			
-			return;
-		}
 		this.calculateShift();		
 		this.updateInterval = (long) (imageScale > 1 ? 10 * imageScale : 10);
 	}
 	
 	private void changeScale(float value) {
-		this.imageScale = MathUtil.clamp(this.imageScale + value, 0.5F, 3F);
+		float step = imageScale > 1F ? value * imageScale : value;
+		this.imageScale = MathUtil.clamp(this.imageScale + step, 0.5F, 1 << LodRegion.LEVELS);
 		this.updateScale();
 	}
 	
@@ -343,7 +347,7 @@ public class Worldmap extends MapScreen implements IMap {
 		int cx = posX - (chunkX << 4);
 		int cz = posZ - (chunkZ << 4);
 		
-		int posY = mapChunk.getHeighmap()[cx + (cz << 4)];
+		int posY = mapChunk.getHeight(cx, cz);
 		posY = posY == -1 ? centerPos.getY() : posY;
 		
 		return new BlockPos(posX, posY, posZ);
@@ -0,0 +1,220 @@
+package ru.bulldog.justmap.map.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import ru.bulldog.justmap.JustMap;
+
+public class BlobFile implements AutoCloseable {
+
+	private final static int VERSION = 2;
+	private final static int HEADER_SIZE = 16;
+	private final static int MAP_STEP = 1 << 16;
+
+	private final File file;
+	private final int magic;
+	private final int entries;
+	private final int dataStart;
+	private RandomAccessFile access;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int end;
+	private int live;
+	private boolean compactable = true;
+	private boolean closed = false;
+
+	public BlobFile(File file, int magic, int entries) throws IOException {
+		this.file = file;
+		this.magic = magic;
+		this.entries = entries;
+		this.dataStart = HEADER_SIZE + entries * 8;
+
+		if (file.exists() && !this.isValid()) {
+			this.replace(new int[entries], new int[entries]);
+		}
+		this.open();
+		if (this.needsCompact()) {
+			this.compact();
+		}
+	}
+
+	public static int readMagic(File file) throws IOException {
+		try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+			return input.length() >= 4 ? input.readInt() : 0;
+		}
+	}
+
+	public synchronized ByteBuffer read(int index) {
+		if (closed || index < 0 || index >= entries) return null;
+
+		int offset = buffer.getInt(HEADER_SIZE + index * 8);
+		int length = buffer.getInt(HEADER_SIZE + index * 8 + 4);
+		if (length <= 0 || offset < dataStart || offset + length > end) return null;
+
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offset + length).position(offset);
+
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	public synchronized void write(int index, byte[] data) throws IOException {
+		if (closed) throw new IOException("Blob file is closed");
+		if (index < 0 || index >= entries) return;
+
+		int offset = end;
+		this.map(offset + data.length);
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset);
+		target.put(data);
+
+		this.live += data.length - this.liveLength(index);
+		this.end = offset + data.length;
+		this.buffer.putInt(HEADER_SIZE + index * 8, offset);
+		this.buffer.putInt(HEADER_SIZE + index * 8 + 4, data.length);
+		this.buffer.putInt(12, end);
+
+		if (this.needsCompact()) {
+			this.compact();
+		}
+	}
+
+	private void open() throws IOException {
+		boolean exists = file.exists() && file.length() >= dataStart;
+		this.access = new RandomAccessFile(file, "rw");
+		this.channel = access.getChannel();
+		try {
+			if (exists) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				this.channel.read(header, 0);
+				this.end = Math.max(dataStart, header.getInt(12));
+			} else {
+				this.end = dataStart;
+			}
+			this.map(end);
+			if (!exists) this.writeHeader();
+		} catch (IOException ex) {
+			this.channel.close();
+			throw ex;
+		}
+
+		this.live = 0;
+		for (int i = 0; i < entries; i++) {
+			this.live += this.liveLength(i);
+		}
+	}
+
+	private int liveLength(int index) {
+		int offset = buffer.getInt(HEADER_SIZE + index * 8);
+		int length = buffer.getInt(HEADER_SIZE + index * 8 + 4);
+		if (length <= 0 || offset < dataStart || offset + length > end) return 0;
+
+		return length;
+	}
+
+	private void map(int size) throws IOException {
+		if (buffer != null && buffer.capacity() >= size) return;
+
+		int capacity = (size + MAP_STEP - 1) / MAP_STEP * MAP_STEP;
+		if (buffer != null) {
+			capacity = Math.max(capacity, Math.min(buffer.capacity() * 2, capacity + (MAP_STEP << 4)));
+		}
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	private boolean isValid() throws IOException {
+		if (file.length() < dataStart) return false;
+		try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+			return input.readInt() == magic && input.readInt() == VERSION && input.readInt() == entries;
+		}
+	}
+
+	private void writeHeader() {
+		this.buffer.putInt(0, magic);
+		this.buffer.putInt(4, VERSION);
+		this.buffer.putInt(8, entries);
+		this.buffer.putInt(12, end);
+	}
+
+	private boolean needsCompact() {
+		int used = end - dataStart;
+		return compactable && used >= MAP_STEP && live < used / 2;
+	}
+
+	private void compact() throws IOException {
+		int[] offsets = new int[entries];
+		int[] lengths = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			lengths[i] = this.liveLength(i);
+			offsets[i] = buffer.getInt(HEADER_SIZE + i * 8);
+		}
+		this.buffer.force();
+		this.channel.close();
+		this.buffer = null;
+		try {
+			this.replace(offsets, lengths);
+		} catch (IOException ex) {
+			JustMap.LOGGER.logWarning("Can't compact blob file", file, ex);
+			this.compactable = false;
+		}
+		this.open();
+	}
+
+	private void replace(int[] offsets, int[] lengths) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		try (RandomAccessFile input = new RandomAccessFile(file, "r");
+			 RandomAccessFile temp = new RandomAccessFile(tempFile, "rw")) {
+
+			FileChannel source = input.getChannel();
+			FileChannel target = temp.getChannel();
+			target.truncate(0);
+
+			ByteBuffer index = ByteBuffer.allocate(entries * 8);
+			int position = dataStart;
+			for (int i = 0; i < entries; i++) {
+				if (lengths[i] <= 0) {
+					index.putInt(0).putInt(0);
+					continue;
+				}
+				target.position(position);
+				long copied = 0;
+				while (copied < lengths[i]) {
+					long count = source.transferTo(offsets[i] + copied, lengths[i] - copied, target);
+					if (count <= 0) throw new IOException("Blob file is truncated");
+					copied += count;
+				}
+				index.putInt(position).putInt(lengths[i]);
+				position += lengths[i];
+			}
+			index.flip();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(magic).putInt(VERSION).putInt(entries).putInt(position).flip();
+			target.write(header, 0);
+			target.write(index, HEADER_SIZE);
+			target.force(true);
+		}
+
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			tempFile.delete();
+			throw ex;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+
+		this.closed = true;
+		this.buffer.force();
+		this.channel.close();
+		this.buffer = null;
+	}
+}
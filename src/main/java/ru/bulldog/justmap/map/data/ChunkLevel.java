@@ -1,117 +1,357 @@
 package ru.bulldog.justmap.map.data;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.NbtHelper;
 import net.minecraft.world.chunk.IdListPalette;
 import net.minecraft.world.chunk.Palette;
 import net.minecraft.world.chunk.PalettedContainer;
-import ru.bulldog.justmap.util.ColorUtil;
-import ru.bulldog.justmap.util.Colors;
 import ru.bulldog.justmap.util.StateUtil;
 
 public class ChunkLevel {
-	
-	private final static Palette<BlockState> palette;	
-	private volatile PalettedContainer<BlockState> container;
-	
-	int[] heightmap;
+
+	public final static ChunkLevel EMPTY = new ChunkLevel(-1);
+
+	private final static int AIR_ID = Block.getRawIdFromState(StateUtil.AIR);
+	private final static Map<String, BlockState> parsedStates = new ConcurrentHashMap<>();
+
+	int[] states;
+	short[] heightmap;
+	short[] floormap;
 	int[] colormap;
-	int[] colordata;
-	int[] levelmap;
-	int[] topomap;
-	
-	long updated = 0;
-	long refreshed = 0;
+	byte[] levelmap;
+	byte[] topomap;
+
+	private final AtomicLongArray dirty;
+
+	short[] eastEdge;
+	short[] northEdge;
+	volatile boolean edgesLoaded = false;
+
 	int level;
-	
+
 	ChunkLevel(int level) {
-		this.container = new PalettedContainer<>(palette, Block.STATE_IDS, NbtHelper::toBlockState, NbtHelper::fromBlockState, StateUtil.AIR);		
-		this.heightmap = new int[256];
+		this.states = new int[256];
+		this.heightmap = new short[256];
+		this.floormap = new short[256];
 		this.colormap = new int[256];
-		this.colordata = new int[256];
-		this.levelmap = new int[256];
-		this.topomap = new int[256];
-		
+		this.levelmap = new byte[256];
+		this.topomap = new byte[256];
+		this.eastEdge = new short[16];
+		this.northEdge = new short[16];
+		this.dirty = new AtomicLongArray(4);
+
 		this.level = level;
-		
+		this.markDirty();
+
+		Arrays.fill(states, AIR_ID);
+		Arrays.fill(heightmap, (short) -1);
+		Arrays.fill(floormap, (short) -1);
+		Arrays.fill(eastEdge, (short) -1);
+		Arrays.fill(northEdge, (short) -1);
 		Arrays.fill(colormap, -1);
-		Arrays.fill(heightmap, -1);
-		Arrays.fill(levelmap, 0);
-		Arrays.fill(topomap, 0);
-		Arrays.fill(colordata, Colors.BLACK);
 	}
-	
-	public PalettedContainer<BlockState> container() {
-		synchronized (container) {
-			return this.container;
-		}
+
+	public BlockState getBlockState(int x, int z) {
+		return Block.getStateFromRawId(states[x + (z << 4)]);
 	}
-	
-	public BlockState getBlockState(int x, int y, int z) {
-		return container().get(x, y, z);
+
+	public void setBlockState(int x, int z, BlockState blockState) {
+		this.states[x + (z << 4)] = Block.getRawIdFromState(blockState);
 	}
-	
-	public BlockState setBlockState(int x, int y, int z, BlockState blockState) {
-		return container().set(x, y, z, blockState);
+
+	public boolean stateEquals(int x, int z, BlockState blockState) {
+		return states[x + (z << 4)] == Block.getRawIdFromState(blockState);
 	}
-	
+
+	public int getHeight(int x, int z) {
+		return heightmap[x + (z << 4)];
+	}
+
 	public void updateHeightmap(int x, int z, int y) {
 		int index = x + (z << 4);
 		if (heightmap[index] != y) {
-			setBlockState(x, heightmap[index] & 15, z, StateUtil.AIR);
-			heightmap[index] = y;
+			this.states[index] = AIR_ID;
+			this.heightmap[index] = (short) y;
 		}
 	}
-	
+
+	public int getFloor(int x, int z) {
+		return floormap[x + (z << 4)];
+	}
+
+	public boolean updateFloor(int x, int z, int y) {
+		int index = x + (z << 4);
+		if (floormap[index] == y) return false;
+
+		this.floormap[index] = (short) y;
+		return true;
+	}
+
+	public void setEastEdge(int z, int y) {
+		this.eastEdge[z] = (short) y;
+	}
+
+	public void setNorthEdge(int x, int y) {
+		this.northEdge[x] = (short) y;
+	}
+
 	public void clear(int x, int z) {
 		int index = x + (z << 4);
-		if (heightmap[index] != -1) {
-			setBlockState(x, heightmap[index] & 15, z, StateUtil.AIR);
-			this.heightmap[index] = -1;
-		}
-		
+
+		this.states[index] = AIR_ID;
+		this.heightmap[index] = -1;
+		this.floormap[index] = -1;
 		this.colormap[index] = -1;
 		this.levelmap[index] = 0;
 		this.topomap[index] = 0;
-		this.colordata[index] = Colors.BLACK;
 	}
-	
+
+	public void markDirty(int x, int z) {
+		int index = x + (z << 4);
+		long bit = 1L << (index & 63);
+		this.dirty.accumulateAndGet(index >> 6, bit, (bits, mask) -> bits | mask);
+	}
+
+	public void markDirty() {
+		for (int i = 0; i < 4; i++) {
+			this.dirty.set(i, -1L);
+		}
+	}
+
+	void markDirty(long[] bits) {
+		for (int i = 0; i < 4; i++) {
+			if (bits[i] == 0L) continue;
+			this.dirty.accumulateAndGet(i, bits[i], (current, mask) -> current | mask);
+		}
+	}
+
+	public boolean isDirty() {
+		if (this.isEmpty()) return false;
+
+		for (int i = 0; i < 4; i++) {
+			if (dirty.get(i) != 0L) return true;
+		}
+
+		return false;
+	}
+
+	long[] takeDirty() {
+		long[] bits = new long[4];
+		for (int i = 0; i < 4; i++) {
+			bits[i] = this.dirty.getAndSet(i, 0L);
+		}
+
+		return bits;
+	}
+
+	static boolean isDirty(long[] bits, int index) {
+		return (bits[index >> 6] & (1L << (index & 63))) != 0L;
+	}
+
 	public boolean isEmpty() {
 		return this.level == -1;
 	}
-	
-	public void store(CompoundTag tag) {
-		tag.putIntArray("Heightmap", heightmap);
-		tag.putIntArray("Colormap", colormap);
-		tag.putIntArray("Levelmap", levelmap);
-		tag.putIntArray("Topomap", levelmap);
+
+	public void write(DataOutput output) throws IOException {
+		Int2IntOpenHashMap paletteIds = new Int2IntOpenHashMap();
+		IntArrayList palette = new IntArrayList();
+		byte[] indexes = paletteIndexes(states, paletteIds, palette);
+		output.writeShort(palette.size());
+		for (int i = 0; i < palette.size(); i++) {
+			BlockState state = Block.getStateFromRawId(palette.getInt(i));
+			writeString(output, StateUtil.stateToString(state));
+		}
+		output.write(indexes);
+		
+		paletteIds.clear();
+		palette.clear();
+		indexes = paletteIndexes(colormap, paletteIds, palette);
+		output.writeShort(palette.size());
+		for (int i = 0; i < palette.size(); i++) {
+			output.writeInt(palette.getInt(i));
+		}
+		output.write(indexes);
+		
+		int last = 0;
+		for (int i = 0; i < 256; i++) {
+			writeVarInt(output, heightmap[i] - last);
+			last = heightmap[i];
+		}
+		for (int i = 0; i < 256; i++) {
+			writeVarInt(output, heightmap[i] - floormap[i]);
+		}
+		output.write(levelmap);
+		output.write(topomap);
 	}
 	
-	public void load(CompoundTag tag) {
-		if (tag.isEmpty()) return;
+	public void read(ByteBuffer input) {
+		int paletteSize = input.getShort();
+		int[] palette = new int[paletteSize];
+		for (int i = 0; i < paletteSize; i++) {
+			palette[i] = Block.getRawIdFromState(parseState(readString(input)));
+		}
+		for (int i = 0; i < 256; i++) {
+			this.states[i] = palette[input.get() & 255];
+		}
 		
-		this.heightmap = tag.getIntArray("Heightmap");
-		this.colormap = tag.getIntArray("Colormap");
-		this.levelmap = tag.getIntArray("Levelmap");
-		if (tag.contains("Topomap")) {
-			this.topomap = tag.getIntArray("Topomap");
+		paletteSize = input.getShort();
+		palette = new int[paletteSize];
+		for (int i = 0; i < paletteSize; i++) {
+			palette[i] = input.getInt();
+		}
+		for (int i = 0; i < 256; i++) {
+			this.colormap[i] = palette[input.get() & 255];
 		}
 		
+		int last = 0;
+		for (int i = 0; i < 256; i++) {
+			last += readVarInt(input);
+			this.heightmap[i] = (short) last;
+		}
 		for (int i = 0; i < 256; i++) {
-			int color = this.colormap[i];
-			if (color != -1) {
-				int level = this.levelmap[i];
-				float topoLevel = this.topomap[i] / 100F;
-				this.colordata[i] = ColorUtil.proccessColor(color, level, topoLevel);
-			}			
+			this.floormap[i] = (short) (heightmap[i] - readVarInt(input));
+		}
+		input.get(levelmap);
+		input.get(topomap);
+	}
+	
+	static void writeString(DataOutput output, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeShort(bytes.length);
+		output.write(bytes);
+	}
+	
+	static String readString(ByteBuffer input) {
+		byte[] bytes = new byte[input.getShort() & 0xFFFF];
+		input.get(bytes);
+		
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] paletteIndexes(int[] values, Int2IntOpenHashMap paletteIds, IntArrayList palette) {
+		byte[] indexes = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			int value = values[i];
+			int index = paletteIds.getOrDefault(value, -1);
+			if (index == -1) {
+				index = palette.size();
+				paletteIds.put(value, index);
+				palette.add(value);
+			}
+			indexes[i] = (byte) index;
+		}
+		
+		return indexes;
+	}
+	
+	private static BlockState parseState(String value) {
+		return parsedStates.computeIfAbsent(value, StateUtil::stateFromString);
+	}
+	
+	private static void writeVarInt(DataOutput output, int value) throws IOException {
+		value = (value << 1) ^ (value >> 31);
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
 		}
+		output.writeByte(value);
+	}
+	
+	private static int readVarInt(ByteBuffer input) {
+		int value = 0;
+		int shift = 0;
+		int next;
+		do {
+			next = input.get() & 255;
+			value |= (next & 0x7F) << shift;
+			shift += 7;
+		} while ((next & 0x80) != 0 && shift < 35);
+		
+		return (value >>> 1) ^ -(value & 1);
 	}
 	
-	static {
-		palette = new IdListPalette<>(Block.STATE_IDS, StateUtil.AIR);
+	public void load(CompoundTag tag, int version) {
+		if (tag.isEmpty()) return;
+
+		int[] heights = tag.getIntArray("Heightmap");
+		int[] floors = tag.contains("Floormap", 11) ? tag.getIntArray("Floormap") : heights;
+		for (int i = 0; i < 256; i++) {
+			this.heightmap[i] = (short) heights[i];
+			this.floormap[i] = (short) floors[i];
+		}
+		this.colormap = tag.getIntArray("Colormap");
+		this.levelmap = loadBytes(tag, "Levelmap");
+		if (version >= 4) {
+			this.topomap = loadBytes(tag, "Topomap");
+		}
+
+		if (tag.contains("BlockStates", 12)) {
+			this.loadContainer(tag.getList("Palette", 10), tag.getLongArray("BlockStates"));
+		} else {
+			this.loadStates(tag.getList("Palette", 10), tag);
+		}
+	}
+
+	private void loadStates(ListTag paletteTag, CompoundTag tag) {
+		int[] palette = new int[paletteTag.size()];
+		for (int i = 0; i < palette.length; i++) {
+			palette[i] = Block.getRawIdFromState(NbtHelper.toBlockState(paletteTag.getCompound(i)));
+		}
+		if (palette.length == 0) return;
+
+		if (tag.contains("States", 7)) {
+			byte[] packed = tag.getByteArray("States");
+			for (int i = 0; i < 256; i++) {
+				this.states[i] = palette[packed[i] & 255];
+			}
+		} else {
+			int[] indexes = tag.getIntArray("States");
+			for (int i = 0; i < 256; i++) {
+				this.states[i] = palette[indexes[i]];
+			}
+		}
+	}
+
+	private void loadContainer(ListTag paletteTag, long[] blockStates) {
+		Palette<BlockState> palette = new IdListPalette<>(Block.STATE_IDS, StateUtil.AIR);
+		PalettedContainer<BlockState> container = new PalettedContainer<>(palette, Block.STATE_IDS, NbtHelper::toBlockState, NbtHelper::fromBlockState, StateUtil.AIR);
+		container.read(paletteTag, blockStates);
+
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				int index = x + (z << 4);
+				if (heightmap[index] == -1) continue;
+				this.states[index] = Block.getRawIdFromState(container.get(x, heightmap[index] & 15, z));
+			}
+		}
+	}
+
+	private static byte[] loadBytes(CompoundTag tag, String key) {
+		if (tag.contains(key, 7)) {
+			return tag.getByteArray(key);
+		}
+
+		int[] values = tag.getIntArray(key);
+		byte[] bytes = new byte[256];
+		for (int i = 0; i < values.length && i < 256; i++) {
+			bytes[i] = (byte) values[i];
+		}
+
+		return bytes;
 	}
 }
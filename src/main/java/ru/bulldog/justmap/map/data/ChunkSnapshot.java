@@ -0,0 +1,267 @@
+package ru.bulldog.justmap.map.data;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.fluid.FluidState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.BlockRenderView;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.LightType;
+import net.minecraft.world.World;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.biome.source.BiomeArray;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.LightingProvider;
+import net.minecraft.world.level.ColorResolver;
+
+import ru.bulldog.justmap.util.StateUtil;
+
+public class ChunkSnapshot implements BlockRenderView {
+
+	private final static long CAPTURE_BUDGET = 2000000L;
+	private final static PriorityBlockingQueue<Request> clientQueue = new PriorityBlockingQueue<>();
+	private final static PriorityBlockingQueue<Request> serverQueue = new PriorityBlockingQueue<>();
+	private final static AtomicLong order = new AtomicLong();
+
+	private final ChunkPos pos;
+	private final BlockState[][] columns;
+	private final int[] tops;
+	private final int[] surface;
+	private final int[] oceanFloor;
+	private final Biome[] biomes;
+	private final LightingProvider lightingProvider;
+	private final int seaLevel;
+
+	private ChunkSnapshot(World world, WorldChunk worldChunk, Layer.Type layer, int level, long[] dirty) {
+		this.pos = worldChunk.getPos();
+		this.lightingProvider = world.getLightingProvider();
+		this.seaLevel = world.getSeaLevel();
+
+		this.surface = new int[256];
+		this.oceanFloor = world instanceof ServerWorld ? new int[256] : null;
+		for (int x = 0; x < 16; x++) {
+			for (int z = 0; z < 16; z++) {
+				int index = x + (z << 4);
+				this.surface[index] = worldChunk.sampleHeightmap(Heightmap.Type.WORLD_SURFACE, x, z);
+				if (oceanFloor != null) {
+					this.oceanFloor[index] = worldChunk.sampleHeightmap(Heightmap.Type.OCEAN_FLOOR, x, z);
+				}
+			}
+		}
+
+		BiomeArray biomeArray = worldChunk.getBiomeArray();
+		if (biomeArray != null) {
+			this.biomes = new Biome[1024];
+			for (int i = 0; i < 1024; i++) {
+				this.biomes[i] = biomeArray.getBiomeForNoiseGen(i & 3, i >> 4, (i >> 2) & 3);
+			}
+		} else {
+			this.biomes = null;
+		}
+
+		this.columns = new BlockState[256][];
+		this.tops = new int[256];
+		ChunkSection[] sections = worldChunk.getSectionArray();
+		BlockState[] buffer = new BlockState[(sections.length << 4) + 2];
+		for (int index = 0; index < 256; index++) {
+			if (!ChunkLevel.isDirty(dirty, index)) continue;
+
+			int x = index & 15;
+			int z = index >> 4;
+			int top, limit;
+			if (layer == Layer.Type.SURFACE) {
+				top = surface[index] + 2;
+				limit = oceanFloor != null ? Math.min(top, oceanFloor[index]) : top;
+			} else {
+				int height = layer.value.height;
+				top = level * height + height;
+				limit = level * height;
+			}
+			top = Math.min(top, (sections.length << 4) + 1);
+
+			int count = 0;
+			for (int y = top; y >= 0; y--) {
+				BlockState state = getBlockState(sections, x, y, z);
+				buffer[count++] = state;
+				if (y <= limit && !StateUtil.checkState(state, false, false)) break;
+			}
+			this.columns[index] = Arrays.copyOf(buffer, count);
+			this.tops[index] = top;
+		}
+	}
+
+	public static CompletableFuture<ChunkSnapshot> capture(World world, int chunkX, int chunkZ, Layer.Type layer, int level, long[] dirty, long priority, BooleanSupplier valid) {
+		Request request = new Request(world, chunkX, chunkZ, layer, level, dirty, priority, valid);
+		if (world instanceof ServerWorld) {
+			serverQueue.offer(request);
+		} else {
+			clientQueue.offer(request);
+		}
+
+		return request.future;
+	}
+
+	public static void tickClient() {
+		processQueue(clientQueue);
+	}
+
+	public static void tickServer() {
+		processQueue(serverQueue);
+	}
+
+	private static void processQueue(PriorityBlockingQueue<Request> queue) {
+		long deadline = System.nanoTime() + CAPTURE_BUDGET;
+		Request request;
+		while (System.nanoTime() < deadline && (request = queue.poll()) != null) {
+			request.run();
+		}
+	}
+
+	private static BlockState getBlockState(ChunkSection[] sections, int x, int y, int z) {
+		int sectionY = y >> 4;
+		if (sectionY < 0 || sectionY >= sections.length) return StateUtil.AIR;
+
+		ChunkSection section = sections[sectionY];
+		if (ChunkSection.isEmpty(section)) return StateUtil.AIR;
+
+		return section.getBlockState(x, y & 15, z);
+	}
+
+	public ChunkPos getPos() {
+		return this.pos;
+	}
+
+	public int getSurfaceY(int x, int z) {
+		return this.surface[x + (z << 4)];
+	}
+
+	public boolean hasOceanFloor() {
+		return this.oceanFloor != null;
+	}
+
+	public int getOceanFloorY(int x, int z) {
+		return this.oceanFloor != null ? oceanFloor[x + (z << 4)] : -1;
+	}
+
+	public int getSeaLevel() {
+		return this.seaLevel;
+	}
+
+	public BlockState getBlockState(int x, int y, int z) {
+		int index = (x & 15) + ((z & 15) << 4);
+		BlockState[] column = columns[index];
+		if (column == null) return StateUtil.AIR;
+
+		int offset = tops[index] - y;
+		if (offset < 0 || offset >= column.length) return StateUtil.AIR;
+
+		return column[offset];
+	}
+
+	@Override
+	public BlockState getBlockState(BlockPos pos) {
+		if (pos.getX() >> 4 != this.pos.x || pos.getZ() >> 4 != this.pos.z) {
+			return StateUtil.AIR;
+		}
+		return this.getBlockState(pos.getX(), pos.getY(), pos.getZ());
+	}
+
+	@Override
+	public FluidState getFluidState(BlockPos pos) {
+		return this.getBlockState(pos).getFluidState();
+	}
+
+	@Override
+	public BlockEntity getBlockEntity(BlockPos pos) {
+		return null;
+	}
+
+	@Override
+	public float getBrightness(Direction direction, boolean shaded) {
+		return 1.0F;
+	}
+
+	@Override
+	public LightingProvider getLightingProvider() {
+		return this.lightingProvider;
+	}
+
+	@Override
+	public int getLightLevel(LightType type, BlockPos pos) {
+		return 15;
+	}
+
+	@Override
+	public int getBaseLightLevel(BlockPos pos, int ambientDarkness) {
+		return 15;
+	}
+
+	@Override
+	public int getColor(BlockPos pos, ColorResolver colorResolver) {
+		if (biomes == null) return -1;
+
+		int biomeX = (pos.getX() >> 2) & 3;
+		int biomeY = Math.max(0, Math.min(63, pos.getY() >> 2));
+		int biomeZ = (pos.getZ() >> 2) & 3;
+		Biome biome = biomes[biomeX | (biomeZ << 2) | (biomeY << 4)];
+		return colorResolver.getColor(biome, pos.getX(), pos.getZ());
+	}
+
+	private static class Request implements Comparable<Request> {
+		private final CompletableFuture<ChunkSnapshot> future = new CompletableFuture<>();
+		private final World world;
+		private final int chunkX;
+		private final int chunkZ;
+		private final Layer.Type layer;
+		private final int level;
+		private final long[] dirty;
+		private final long priority;
+		private final long order;
+		private final BooleanSupplier valid;
+
+		private Request(World world, int chunkX, int chunkZ, Layer.Type layer, int level, long[] dirty, long priority, BooleanSupplier valid) {
+			this.world = world;
+			this.chunkX = chunkX;
+			this.chunkZ = chunkZ;
+			this.layer = layer;
+			this.level = level;
+			this.dirty = dirty;
+			this.priority = priority;
+			this.order = ChunkSnapshot.order.getAndIncrement();
+			this.valid = valid;
+		}
+
+		private void run() {
+			if (!valid.getAsBoolean()) {
+				this.future.complete(null);
+				return;
+			}
+			try {
+				WorldChunk worldChunk = world.getChunkManager().getWorldChunk(chunkX, chunkZ, false);
+				if (worldChunk == null || worldChunk.isEmpty()) {
+					this.future.complete(null);
+				} else {
+					this.future.complete(new ChunkSnapshot(world, worldChunk, layer, level, dirty));
+				}
+			} catch (Exception ex) {
+				this.future.completeExceptionally(ex);
+			}
+		}
+
+		@Override
+		public int compareTo(Request request) {
+			int result = Long.compare(priority, request.priority);
+			return result != 0 ? result : Long.compare(order, request.order);
+		}
+	}
+}
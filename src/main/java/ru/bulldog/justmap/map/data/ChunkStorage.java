@@ -1,9 +1,9 @@
 package ru.bulldog.justmap.map.data;
 
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
-import net.minecraft.nbt.CompoundTag;
 import net.minecraft.util.math.ChunkPos;
 
 public class ChunkStorage implements AutoCloseable {
@@ -14,12 +14,12 @@ public class ChunkStorage implements AutoCloseable {
 		this.worker = new StorageWorker();
 	}
 	
-	public CompoundTag getNbt(File dir, ChunkPos chunkPos) throws IOException {
-		return this.worker.getNbt(dir, chunkPos);
+	public CompletableFuture<ByteBuffer> getDataAsync(File dir, ChunkPos chunkPos) {
+		return this.worker.getDataAsync(dir, chunkPos);
 	}
 
-	public void setTagAt(File dir, ChunkPos chunkPos, CompoundTag compoundTag) {
-		this.worker.setResult(dir, chunkPos, compoundTag);
+	public void setData(File dir, ChunkPos chunkPos, byte[] data) {
+		this.worker.setResult(dir, chunkPos, data);
 	}
 
 	@Override
@@ -0,0 +1,184 @@
+package ru.bulldog.justmap.map.data;
+
+import java.io.File;
+
+import org.lwjgl.opengl.GL11;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+
+import net.minecraft.client.render.BufferBuilder;
+import net.minecraft.client.render.Tessellator;
+import net.minecraft.client.render.VertexFormats;
+
+import ru.bulldog.justmap.client.config.ClientParams;
+import ru.bulldog.justmap.client.render.MapTexture;
+import ru.bulldog.justmap.util.Colors;
+import ru.bulldog.justmap.util.DrawHelper;
+
+public class LodRegion {
+
+	public final static int LEVELS = 4;
+
+	private static Tessellator tessellator = Tessellator.getInstance();
+	private static BufferBuilder builder = tessellator.getBuffer();
+
+	private final RegionPos pos;
+	private final Layer.Type layer;
+	private final int level;
+	private final int lod;
+	private final TileStore tiles = new TileStore();
+	private MapTexture image;
+
+	private volatile boolean ready = false;
+	private volatile boolean closed = false;
+
+	public long requested = System.currentTimeMillis();
+
+	public LodRegion(int lod, int x, int z, Layer.Type layer, int level) {
+		this.pos = new RegionPos(x, z);
+		this.layer = layer;
+		this.level = level;
+		this.lod = lod;
+		TileStore.WORKER.execute(this::load);
+	}
+
+	public static int lodLevel(float scale) {
+		int lod = 0;
+		while (lod < LEVELS && scale >= (2 << lod)) {
+			lod++;
+		}
+		return lod;
+	}
+
+	public static long toLong(int regionX, int regionZ, int lod) {
+		return RegionPos.toLong(regionX >> lod, regionZ >> lod);
+	}
+
+	public int getX() {
+		return this.pos.x;
+	}
+
+	public int getZ() {
+		return this.pos.z;
+	}
+
+	public int getSize() {
+		return 512 << lod;
+	}
+
+	private void load() {
+		this.image = new MapTexture(512, 512, MapTexture.Format.RGB565);
+		this.image.fill(Colors.BLACK);
+		File tilesFile = this.tilesFile();
+		if (tilesFile.exists()) {
+			this.tiles.load(tilesFile, image);
+		}
+		this.ready = true;
+	}
+
+	synchronized boolean update(int regionX, int regionZ, int tileIndex, int[] colors) {
+		if (closed) return false;
+
+		this.requested = System.currentTimeMillis();
+
+		int step = 1 << lod;
+		int size = 16 >> lod;
+		int texX = ((regionX - (pos.x << lod)) << (9 - lod)) + (((tileIndex & 31) << 4) >> lod);
+		int texY = ((regionZ - (pos.z << lod)) << (9 - lod)) + (((tileIndex >> 5) << 4) >> lod);
+		int[] block = new int[size * size];
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				int a = 0, r = 0, g = 0, b = 0;
+				for (int dx = 0; dx < step; dx++) {
+					for (int dy = 0; dy < step; dy++) {
+						int color = colors[(i * step + dx) + ((j * step + dy) << 4)];
+						a += (color >> 24) & 255;
+						r += (color >> 16) & 255;
+						g += (color >> 8) & 255;
+						b += color & 255;
+					}
+				}
+				int count = step * step;
+				int color = (a / count) << 24 | (r / count) << 16 | (g / count) << 8 | (b / count);
+				block[i + j * size] = color;
+			}
+		}
+		this.image.blit(texX, texY, size, size, block);
+		this.tiles.markChanged((texX >> 4) + ((texY >> 4) << 5));
+		this.saveTiles(false);
+		
+		return true;
+	}
+
+	void saveTiles(boolean force) {
+		if (!ready) return;
+		this.tiles.save(force, this.tilesFile(), image);
+	}
+
+	boolean needSave() {
+		return this.tiles.needSave();
+	}
+
+	private File tilesFile() {
+		File dir = new File(MapRegion.layerDir(layer, level), String.format("lod%d/", lod));
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+
+		return new File(dir, String.format("r%d.%d.tiles", pos.x, pos.z));
+	}
+
+	public void draw(double x, double y, int imgX, int imgY, int width, int height, float scale) {
+		if (width <= 0 || height <= 0) return;
+
+		float size = this.getSize();
+		float u1 = imgX / size;
+		float v1 = imgY / size;
+		float u2 = (imgX + width) / size;
+		float v2 = (imgY + height) / size;
+
+		double scW = (double) width / scale;
+		double scH = (double) height / scale;
+
+		if (!ready) {
+			DrawHelper.fill(x, y, scW, scH, Colors.BLACK);
+			return;
+		}
+
+		if (ClientParams.textureCompression) {
+			this.image.compress();
+		}
+		if (image.changed) {
+			this.image.upload();
+		}
+
+		RenderSystem.enableBlend();
+		RenderSystem.defaultBlendFunc();
+		RenderSystem.bindTexture(image.getId());
+		if (ClientParams.textureFilter) {
+			RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR_MIPMAP_LINEAR);
+			RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+		}
+
+		builder.begin(GL11.GL_QUADS, VertexFormats.POSITION_TEXTURE);
+		builder.vertex(x, y, 0.0).texture(u1, v1).next();
+		builder.vertex(x, y + scH, 0.0).texture(u1, v2).next();
+		builder.vertex(x + scW, y + scH, 0.0).texture(u2, v2).next();
+		builder.vertex(x + scW, y, 0.0).texture(u2, v1).next();
+
+		tessellator.draw();
+	}
+
+	public synchronized void close() {
+		if (closed) return;
+		
+		this.closed = true;
+		this.saveTiles(true);
+		TileStore.WORKER.execute(() -> {
+			this.tiles.close();
+			if (image != null) {
+				this.image.close();
+			}
+		});
+	}
+}
@@ -2,10 +2,11 @@ package ru.bulldog.justmap.map.data;
 
 import ru.bulldog.justmap.JustMap;
 import ru.bulldog.justmap.client.config.ClientParams;
+import ru.bulldog.justmap.util.ConcurrentLongMap;
+import ru.bulldog.justmap.util.PosUtil;
 import ru.bulldog.justmap.util.StorageUtil;
 
 import net.minecraft.client.MinecraftClient;
-import net.minecraft.nbt.CompoundTag;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
@@ -13,15 +14,16 @@ import net.minecraft.world.World;
 import net.minecraft.world.dimension.DimensionType;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MapCache {
 	private final static MinecraftClient minecraft = MinecraftClient.getInstance();
 	
-	private static Map<Identifier, MapCache> dimensions = new HashMap<>();
+	private static Map<Identifier, MapCache> dimensions = new ConcurrentHashMap<>();
 	private static World currentWorld;
 	private static Layer.Type currentLayer = Layer.Type.SURFACE;
 	private static Identifier currentDimension = DimensionType.OVERWORLD_REGISTRY_KEY.getValue();
@@ -29,6 +31,8 @@ public class MapCache {
 	
 	public static long lastSaved = 0;
 	
+	private final static AtomicLong hotEvicted = new AtomicLong();
+	
 	public static void setCurrentLayer(Layer.Type layer, int y) {
 		currentLevel =  y / layer.value.height;
 		currentLayer = layer;
@@ -96,14 +100,87 @@ public class MapCache {
 		return data;
 	}
 	
+	private static MapCache getData(World world) {
+		if (world == null) return null;
+		return dimensions.get(world.getDimensionRegistryKey().getValue());
+	}
+	
+	public static MapChunk findChunk(World world, int chunkX, int chunkZ) {
+		MapCache data = getData(world);
+		if (data == null) return null;
+		
+		return data.chunks.get(ChunkPos.toLong(chunkX, chunkZ));
+	}
+	
+	public static void markColumnDirty(World world, int blockX, int blockZ) {
+		MapCache data = getData(world);
+		if (data == null) return;
+		
+		data.markColumnDirty(blockX, blockZ);
+	}
+	
+	public static void markChunkDirty(World world, int chunkX, int chunkZ) {
+		MapCache data = getData(world);
+		if (data == null) return;
+		
+		data.markChunkDirty(chunkX, chunkZ);
+		
+		int posX = chunkX << 4;
+		int posZ = chunkZ << 4;
+		for (int i = 0; i < 16; i++) {
+			data.markColumnDirty(posX - 1, posZ + i);
+			data.markColumnDirty(posX + i, posZ + 16);
+		}
+	}
+	
+	public static void markChunkRestored(World world, int chunkX, int chunkZ) {
+		MapCache data = getData(world);
+		if (data == null) return;
+		
+		data.markRegionDirty(chunkX, chunkZ, true);
+	}
+	
+	public static void setChunkLoaded(World world, int chunkX, int chunkZ, boolean loaded) {
+		MapCache data = getData(world);
+		if (data == null) return;
+		
+		MapRegion region = data.regions.get(RegionPos.toLong(chunkX >> 5, chunkZ >> 5));
+		if (region != null) {
+			region.setChunkLoaded(chunkX, chunkZ, loaded);
+		}
+		if (loaded) {
+			markChunkDirty(world, chunkX, chunkZ);
+		}
+	}
+	
+	public static List<String> getDebugInfo() {
+		List<String> info = new ArrayList<>();
+		MapCache data = dimensions.get(currentDimension);
+		int hotCount = 0;
+		long hotSize = 0;
+		if (data != null) {
+			for (MapRegion region : data.regions.values()) {
+				long usage = region.memoryUsage();
+				if (usage > 0) {
+					hotSize += usage;
+					hotCount++;
+				}
+			}
+		}
+		info.add(String.format("[JustMap] Hot regions: %d (%d/%d MiB), evicted: %d",
+				hotCount, hotSize >> 20, ClientParams.gpuCacheSize, hotEvicted.get()));
+		info.add(String.format("[JustMap] Warm regions: %d (%d/%d MiB), evicted: %d",
+				TileStore.warmCount(), TileStore.warmSize() >> 20, ClientParams.heapCacheSize, TileStore.warmEvicted()));
+		
+		return info;
+	}
+	
 	public static void saveData() {
 		MapCache data = get();
 		if (data == null) return;
 		
 		JustMap.WORKER.execute(() -> {
-			data.getChunks().forEach((pos, chunk) -> {
-				storeChunk(chunk);
-			});
+			data.chunks.values().forEach(MapCache::storeChunk);
 		});
 		lastSaved = System.currentTimeMillis();
 	}
@@ -112,11 +189,8 @@ public class MapCache {
 		if (!chunk.saving && chunk.saveNeeded()) {
 			chunk.saving = true;
 			
-			CompoundTag chunkData = new CompoundTag();
-			chunk.store(chunkData);
-			
-			if (!chunkData.isEmpty()) {
-				chunkData.putInt("version", 3);
+			byte[] chunkData = chunk.store();
+			if (chunkData != null) {
 				StorageUtil.saveCache(chunk.getPos(), chunkData);
 			}
 			chunk.saving = false;
@@ -125,17 +199,20 @@ public class MapCache {
 	
 	public World world;
 	
-	private Map<ChunkPos, MapChunk> chunks;
-	private Map<RegionPos, MapRegion> regions;
+	private ConcurrentLongMap<MapChunk> chunks;
+	private ConcurrentLongMap<MapRegion> regions;
+	private Map<Integer, ConcurrentLongMap<LodRegion>> lods;
 	
 	private long lastPurged = 0;
+	private long lastEvicted = 0;
 	private long purgeDelay = 1000;
 	private int purgeAmount = 500;
 	
 	private MapCache(World world) {
 		this.world = world;		
-		this.chunks = new ConcurrentHashMap<>();
-		this.regions = new ConcurrentHashMap<>();
+		this.chunks = new ConcurrentLongMap<>();
+		this.regions = new ConcurrentLongMap<>();
+		this.lods = new ConcurrentHashMap<>();
 	}
 	
 	private void clearCache() {
@@ -149,27 +226,61 @@ public class MapCache {
 			});
 			this.lastPurged = currentTime;
 		}
+		if (currentTime - lastEvicted > 1000) {
+			JustMap.WORKER.execute(this::evictRegions);
+			this.lastEvicted = currentTime;
+		}
+	}
+	
+	private void evictRegions() {
+		long budget = (long) ClientParams.gpuCacheSize << 20;
+		long usage = 0;
+		List<MapRegion> hotRegions = new ArrayList<>();
+		for (MapRegion region : this.regions.values()) {
+			long regionUsage = region.memoryUsage();
+			if (regionUsage > 0) {
+				usage += regionUsage;
+				hotRegions.add(region);
+			}
+		}
+		if (usage <= budget) return;
+		
+		long currentTime = System.currentTimeMillis();
+		hotRegions.sort(Comparator.comparingLong(region -> region.lastDrawn));
+		for (MapRegion region : hotRegions) {
+			if (usage <= budget || currentTime - region.lastDrawn < 1000) break;
+			if (region.isUpdating()) continue;
+			
+			usage -= region.memoryUsage();
+			this.regions.remove(RegionPos.toLong(region.getX(), region.getZ()));
+			region.evict();
+			hotEvicted.incrementAndGet();
+		}
 	}
 	
 	private void purge(int maxPurged) {
 		long currentTime = System.currentTimeMillis();
 		int purged = 0;
 	
-		List<ChunkPos> chunks = new ArrayList<>();
-		for (ChunkPos chunkPos : this.chunks.keySet()) {
-			MapChunk chunkData = this.chunks.get(chunkPos);
+		for (MapChunk chunkData : this.chunks.values()) {
 			if (currentTime - chunkData.requested >= 5000) {
 				storeChunk(chunkData);
-				chunks.add(chunkPos);
+				this.chunks.remove(chunkData.getPos().toLong());
+				chunkData.purge();
 				purged++;
 				if (purged >= maxPurged) {
 					break;
 				}
 			}
 		}
-	
-		for (ChunkPos chunkPos : chunks) {
-			this.chunks.remove(chunkPos);
+		
+		for (ConcurrentLongMap<LodRegion> lodRegions : this.lods.values()) {
+			for (LodRegion lodRegion : lodRegions.values()) {
+				if (currentTime - lodRegion.requested >= 60000 &&
+					lodRegions.remove(RegionPos.toLong(lodRegion.getX(), lodRegion.getZ()), lodRegion)) {
+					lodRegion.close();
+				}
+			}
 		}
 	}
 	
@@ -178,35 +289,101 @@ public class MapCache {
 	}
 	
 	public MapRegion getRegion(BlockPos blockPos, boolean surfaceOnly) {
-		RegionPos regPos = new RegionPos(blockPos);
-
 		Layer.Type layer = surfaceOnly ? Layer.Type.SURFACE : currentLayer;
 		int level = surfaceOnly ? 0 : currentLevel;
 		
-		MapRegion region;
-		if(regions.containsKey(regPos)) {
-			region = this.regions.get(regPos);
-		} else {
-			region = new MapRegion(blockPos, layer, level);
-			this.regions.put(regPos, region);
-		}
+		long regPos = RegionPos.toLong(blockPos.getX() >> 9, blockPos.getZ() >> 9);
+		MapRegion region = this.regions.computeIfAbsent(regPos, (key) -> {
+			return new MapRegion(blockPos, layer, level);
+		});
 		region.surfaceOnly = surfaceOnly;
 		
 		long time = System.currentTimeMillis();
+		region.requested = time;
 		if (layer != region.getLayer() ||
 			level != region.getLevel()) {
 			region.swapLayer(layer, level);
-		} else if (time - region.updated > 3000) {
+		} else if (time - region.updated > 3000 && region.needUpdate()) {
 			region.updateTexture();
 		}
 		
 		return region;
 	}
 	
-	private Map<ChunkPos, MapChunk> getChunks() {
-		return this.chunks;
+	public LodRegion getLodRegion(BlockPos blockPos, int lod, boolean surfaceOnly) {
+		Layer.Type layer = surfaceOnly ? Layer.Type.SURFACE : currentLayer;
+		int level = surfaceOnly ? 0 : currentLevel;
+		
+		LodRegion region = this.getLod(layer, level, lod, blockPos.getX() >> 9, blockPos.getZ() >> 9);
+		region.requested = System.currentTimeMillis();
+		if (region.needSave()) {
+			region.saveTiles(false);
+		}
+		
+		return region;
 	}
-
+	
+	public void updateLoadedRegions(boolean surfaceOnly) {
+		BlockPos pos = PosUtil.currentPos();
+		int radius = minecraft.options.viewDistance << 4;
+		for (int x = (pos.getX() - radius) >> 9; x <= (pos.getX() + radius) >> 9; x++) {
+			for (int z = (pos.getZ() - radius) >> 9; z <= (pos.getZ() + radius) >> 9; z++) {
+				MapRegion region = this.getRegion(new BlockPos(x << 9, 0, z << 9), surfaceOnly);
+				region.lastDrawn = region.requested;
+			}
+		}
+	}
+	
+	void updateLods(Layer.Type layer, int level, int regionX, int regionZ, int tileIndex, int[] colors) {
+		for (int lod = 1; lod <= LodRegion.LEVELS; lod++) {
+			this.updateLod(layer, level, lod, regionX, regionZ, tileIndex, colors);
+		}
+	}
+	
+	private void updateLod(Layer.Type layer, int level, int lod, int regionX, int regionZ, int tileIndex, int[] colors) {
+		LodRegion region = this.getLod(layer, level, lod, regionX, regionZ);
+		TileStore.WORKER.execute(() -> {
+			if (!region.update(regionX, regionZ, tileIndex, colors)) {
+				this.updateLod(layer, level, lod, regionX, regionZ, tileIndex, colors);
+			}
+		});
+	}
+	
+	private LodRegion getLod(Layer.Type layer, int level, int lod, int regionX, int regionZ) {
+		int key = (layer.ordinal() << 16) | (level << 4) | lod;
+		ConcurrentLongMap<LodRegion> lodRegions = this.lods.computeIfAbsent(key, (k) -> new ConcurrentLongMap<>());
+		return lodRegions.computeIfAbsent(LodRegion.toLong(regionX, regionZ, lod), (pos) -> {
+			return new LodRegion(lod, regionX >> lod, regionZ >> lod, layer, level);
+		});
+	}
+	
+	private void markColumnDirty(int blockX, int blockZ) {
+		MapChunk mapChunk = this.chunks.get(ChunkPos.toLong(blockX >> 4, blockZ >> 4));
+		if (mapChunk != null) {
+			mapChunk.markDirty(blockX & 15, blockZ & 15);
+		}
+		this.markRegionDirty(blockX >> 4, blockZ >> 4, mapChunk != null);
+	}
+	
+	private void markChunkDirty(int chunkX, int chunkZ) {
+		MapChunk mapChunk = this.chunks.get(ChunkPos.toLong(chunkX, chunkZ));
+		if (mapChunk != null) {
+			mapChunk.markDirty();
+		}
+		this.markRegionDirty(chunkX, chunkZ, mapChunk != null);
+	}
+	
+	private void markRegionDirty(int chunkX, int chunkZ, boolean cached) {
+		MapRegion region = this.regions.get(RegionPos.toLong(chunkX >> 5, chunkZ >> 5));
+		if (region == null) return;
+		
+		if (cached) {
+			region.markDirty(chunkX, chunkZ);
+		} else {
+			region.markDirty();
+		}
+	}
+	
 	public MapChunk getCurrentChunk(ChunkPos chunkPos) {
 		return this.getChunk(currentLayer, currentLevel, chunkPos.x, chunkPos.z);
 	}
@@ -216,15 +393,9 @@ public class MapCache {
 	}
 	
 	public MapChunk getChunk(Layer.Type layer, int level, int posX, int posZ) {
-		ChunkPos chunkPos = new ChunkPos(posX, posZ);		
-		
-		MapChunk mapChunk;
-		if (chunks.containsKey(chunkPos)) {
-			mapChunk = this.chunks.get(chunkPos);
-		} else {
-			mapChunk = new MapChunk(world, chunkPos, layer, level);
-			this.chunks.put(chunkPos, mapChunk);
-		}
+		MapChunk mapChunk = this.chunks.computeIfAbsent(ChunkPos.toLong(posX, posZ), (key) -> {
+			return new MapChunk(world, new ChunkPos(posX, posZ), layer, level);
+		});
 		
 		mapChunk.setLevel(layer, level);
 		mapChunk.requested = System.currentTimeMillis();
@@ -233,10 +404,13 @@ public class MapCache {
 	}
 	
 	private void clear() {
-		this.regions.forEach((pos, region) -> {
-			region.close();
-		});
+		this.regions.values().forEach(MapRegion::close);
 		this.regions.clear();
+		this.lods.values().forEach(lodRegions -> {
+			lodRegions.values().forEach(LodRegion::close);
+		});
+		this.lods.clear();
 		this.chunks.clear();
+		TileStore.clearWarm();
 	}
 }
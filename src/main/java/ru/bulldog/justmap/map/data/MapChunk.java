@@ -1,50 +1,53 @@
 package ru.bulldog.justmap.map.data;
 
+import ru.bulldog.justmap.JustMap;
 import ru.bulldog.justmap.client.config.ClientParams;
 import ru.bulldog.justmap.util.ColorUtil;
+import ru.bulldog.justmap.util.Colors;
 import ru.bulldog.justmap.util.Dimension;
+import ru.bulldog.justmap.util.PosUtil;
 import ru.bulldog.justmap.util.StorageUtil;
 import ru.bulldog.justmap.util.TaskManager;
 
-import net.minecraft.world.Heightmap;
 import net.minecraft.world.World;
 import net.minecraft.block.BlockState;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.server.world.ServerWorld;
-import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.registry.RegistryKey;
-import net.minecraft.world.chunk.WorldChunk;
 import net.minecraft.world.dimension.DimensionType;
 import net.minecraft.world.gen.ChunkRandom;
 
-import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class MapChunk {
 	
-	public final ChunkLevel EMPTY_LEVEL = new ChunkLevel(-1);
-	
-	private final static TaskManager chunkUpdater = TaskManager.getManager("chunk-data");
+	private final static int FORMAT_VERSION = 1;
+	private final static TaskManager chunkUpdater = TaskManager.getManager("chunk-data", ClientParams.chunkThreads);
 	private volatile Map<Layer, ChunkLevel[]> levels;
 	
 	private World world;
-	private WorldChunk worldChunk;
 	private ChunkPos chunkPos;
 	private Layer.Type layer;
-	private Identifier dimension;
 	private int level = 0;
 	private boolean outdated = false;
 	private boolean updating = false;
 	private boolean saved = true;
-	private boolean purged = false;
+	private volatile boolean purged = false;
+	private final Map<Integer, CompletableFuture<Boolean>> pendingUpdates = new ConcurrentHashMap<>();
+	private volatile boolean restoring = true;
+	private volatile boolean restored = false;
 	private boolean slime = false;
-	private long refreshed = 0;
 	
 	public boolean saving = false;
 	public long updated = 0;
@@ -58,33 +61,28 @@ public class MapChunk {
 	}
 	
 	public MapChunk(World world, ChunkPos pos, Layer.Type layer) {
-		MinecraftClient client = MinecraftClient.getInstance();
-		RegistryKey<DimensionType> dimType = client.world.getDimensionRegistryKey();
-		
 		this.world = world;
-		this.worldChunk = client.world.getChunk(pos.x, pos.z);
-		this.dimension = dimType.getValue();
 		this.chunkPos = pos;
 		this.layer = layer;
 		this.levels = new ConcurrentHashMap<>();
+		this.slime = isSlimeChunk(world, pos.x, pos.z);
 		
-		if (Dimension.isOverworld(dimType) && (world instanceof ServerWorld)) {
-			this.slime = ChunkRandom.getSlimeRandom(chunkPos.x, chunkPos.z,
-					((ServerWorld) world).getSeed(), 987234911L).nextInt(10) == 0;
-		}
-		
-		this.init();
+		this.restore();
 	}
 	
-	private void init() {
-		if (dimension.equals(DimensionType.THE_NETHER_REGISTRY_KEY.getValue())) {
-			initLayer(Layer.Type.NETHER);
-		} else {
-			initLayer(Layer.Type.SURFACE);
-			initLayer(Layer.Type.CAVES);
+	public static void setUpdateThreads(int threads) {
+		chunkUpdater.setThreads(threads);
+	}
+	
+	public static boolean isSlimeChunk(World world, int chunkX, int chunkZ) {
+		MinecraftClient client = MinecraftClient.getInstance();
+		RegistryKey<DimensionType> dimType = client.world.getDimensionRegistryKey();
+		if (Dimension.isOverworld(dimType) && (world instanceof ServerWorld)) {
+			return ChunkRandom.getSlimeRandom(chunkX, chunkZ,
+					((ServerWorld) world).getSeed(), 987234911L).nextInt(10) == 0;
 		}
 		
-		this.restore();
+		return false;
 	}
 	
 	public MapChunk resetChunk() {
@@ -94,38 +92,39 @@ public class MapChunk {
 		return this;
 	}
 	
-	private void initLayer() {
-		this.initLayer(layer);
-	}
-	
-	private void initLayer(Layer.Type layer) {
-		int levels = worldChunk.getHeight() / layer.value.height;		
-		this.levels.put(layer.value, new ChunkLevel[levels]);
-	}
-	
 	private ChunkLevel getChunkLevel() {
 		return this.getChunkLevel(layer, level);
 	}
 	
 	private ChunkLevel getChunkLevel(Layer.Type layer, int level) {
-		if (!levels.containsKey(layer.value)) {
-			initLayer();
+		ChunkLevel[] layerLevels = this.levels.get(layer.value);
+		if (layerLevels == null || level < 0 || level >= layerLevels.length) {
+			return ChunkLevel.EMPTY;
 		}
 		
-		ChunkLevel chunkLevel;
-		try {
-			if (this.levels.get(layer.value)[level] == null) {
-				chunkLevel = new ChunkLevel(level);
-				this.levels.get(layer.value)[level] = chunkLevel;
-			} else {
-				chunkLevel = this.levels.get(layer.value)[level];
-			}			
-			
-		} catch (ArrayIndexOutOfBoundsException ex) {
-			chunkLevel = EMPTY_LEVEL;
+		ChunkLevel chunkLevel = layerLevels[level];
+		return chunkLevel != null ? chunkLevel : ChunkLevel.EMPTY;
+	}
+	
+	private boolean hasLevel(Layer.Type layer, int level) {
+		return level >= 0 && level < world.getHeight() / layer.value.height;
+	}
+	
+	private ChunkLevel createChunkLevel(Layer.Type layer, int level) {
+		ChunkLevel[] layerLevels = this.levels.computeIfAbsent(layer.value, (layerValue) -> {
+			return new ChunkLevel[world.getHeight() / layerValue.height];
+		});
+		if (level < 0 || level >= layerLevels.length) {
+			return ChunkLevel.EMPTY;
 		}
 		
 		synchronized (levelLock) {
+			ChunkLevel chunkLevel = layerLevels[level];
+			if (chunkLevel == null) {
+				chunkLevel = new ChunkLevel(level);
+				layerLevels[level] = chunkLevel;
+			}
+			
 			return chunkLevel;
 		}
 	}
@@ -155,8 +154,12 @@ public class MapChunk {
 		return level;
 	}
 	
-	public int[] getHeighmap() {
-		return getChunkLevel().heightmap;
+	public int getHeight(int x, int z) {
+		return getChunkLevel().getHeight(x, z);
+	}
+	
+	public int getFloor(int x, int z) {
+		return getChunkLevel().getFloor(x, z);
 	}
 	
 	public MapChunk setLevel(Layer.Type layer, int level) {
@@ -169,160 +172,284 @@ public class MapChunk {
 		return this;
 	}
 	
-	public WorldChunk getWorldChunk() {
-		return worldChunk;
+	public BlockState getBlockState(BlockPos pos) {
+		return getChunkLevel().getBlockState(pos.getX() & 15, pos.getZ() & 15);
+	}
+	
+	public void markDirty(int x, int z) {
+		this.levels.values().forEach(layerLevels -> {
+			for (ChunkLevel chunkLevel : layerLevels) {
+				if (chunkLevel != null) chunkLevel.markDirty(x, z);
+			}
+		});
 	}
 	
-	public BlockState getBlockState(BlockPos pos) {
-		return getChunkLevel().getBlockState(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
+	public void markDirty() {
+		this.levels.values().forEach(layerLevels -> {
+			for (ChunkLevel chunkLevel : layerLevels) {
+				if (chunkLevel != null) chunkLevel.markDirty();
+			}
+		});
+	}
+	
+	public boolean isDirty(Layer.Type layer, int level) {
+		ChunkLevel chunkLevel = this.getChunkLevel(layer, level);
+		if (chunkLevel.isEmpty()) {
+			return this.hasLevel(layer, level);
+		}
+		return chunkLevel.isDirty();
 	}
 	
-	public BlockState setBlockState(BlockPos pos, BlockState blockState) {
-		return getChunkLevel().setBlockState(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, blockState);
+	private static int levelKey(Layer.Type layer, int level) {
+		return (layer.ordinal() << 8) | level;
 	}
 	
-	public MapChunk updateHeighmap() {
-		if (!this.updateWorldChunk()) return this;
+	private long updateKey(Layer.Type layer, int level) {
+		long x = chunkPos.x & 0xFFFFFFL;
+		long z = chunkPos.z & 0xFFFFFFL;
+		return ((long) levelKey(layer, level) << 48) | (z << 24) | x;
+	}
+	
+	private boolean updateHeight(ChunkSnapshot snapshot, ChunkLevel chunkLevel, Layer.Type layer, int level, int x, int z, boolean skipWater) {
+		int y = snapshot.getSurfaceY(x, z);
+		y = MapProcessor.getTopBlockY(snapshot, layer, level, x, y + 1, z, skipWater);
 		
-		boolean waterTint = ClientParams.alternateColorRender && ClientParams.waterTint;
-		boolean skipWater = !(ClientParams.hideWater || waterTint);
-		for (int x = 0; x < 16; x++) {
-			for (int z = 0; z < 16; z++) {
-				int y = worldChunk.sampleHeightmap(Heightmap.Type.WORLD_SURFACE, x, z);
-				y = MapProcessor.getTopBlockY(this, x, y + 1, z, skipWater);
-				
-				int index = x + (z << 4);
-				ChunkLevel chunkLevel = this.getChunkLevel();
-				if (y != -1) {
-					chunkLevel.updateHeightmap(x, z, y);
-				} else if (getHeighmap()[index] != -1) {
-					chunkLevel.clear(x, z);					
-					this.saved = false;
-				}
+		int floor = y != -1 ? MapProcessor.getFloorY(snapshot, layer, level, x, y, z) : -1;
+		int current = chunkLevel.getHeight(x, z);
+		if (y == current && !chunkLevel.updateFloor(x, z, floor)) return false;
+		
+		if (y != -1) {
+			chunkLevel.updateHeightmap(x, z, y);
+			chunkLevel.updateFloor(x, z, floor);
+		} else {
+			chunkLevel.clear(x, z);
+		}
+		this.pushEdges(layer, level, x, z, floor);
+		this.markShadingDirty(x, z);
+		this.saved = false;
+		
+		return true;
+	}
+	
+	private void pushEdges(Layer.Type layer, int level, int x, int z, int floor) {
+		if (x == 0) {
+			MapChunk westChunk = MapCache.findChunk(world, chunkPos.x - 1, chunkPos.z);
+			if (westChunk != null) {
+				ChunkLevel westLevel = westChunk.getChunkLevel(layer, level);
+				if (!westLevel.isEmpty()) westLevel.setEastEdge(z, floor);
 			}
 		}
+		if (z == 15) {
+			MapChunk southChunk = MapCache.findChunk(world, chunkPos.x, chunkPos.z + 1);
+			if (southChunk != null) {
+				ChunkLevel southLevel = southChunk.getChunkLevel(layer, level);
+				if (!southLevel.isEmpty()) southLevel.setNorthEdge(x, floor);
+			}
+		}
+	}
+	
+	private void loadEdges(ChunkLevel chunkLevel, Layer.Type layer, int level) {
+		MapChunk eastChunk = MapCache.findChunk(world, chunkPos.x + 1, chunkPos.z);
+		MapChunk northChunk = MapCache.findChunk(world, chunkPos.x, chunkPos.z - 1);
+		boolean loaded = true;
+		if (eastChunk != null) {
+			ChunkLevel eastLevel = eastChunk.getChunkLevel(layer, level);
+			for (int i = 0; i < 16; i++) {
+				chunkLevel.setEastEdge(i, eastLevel.getFloor(0, i));
+			}
+			loaded &= !eastChunk.isRestoring();
+		}
+		if (northChunk != null) {
+			ChunkLevel northLevel = northChunk.getChunkLevel(layer, level);
+			for (int i = 0; i < 16; i++) {
+				chunkLevel.setNorthEdge(i, northLevel.getFloor(i, 15));
+			}
+			loaded &= !northChunk.isRestoring();
+		}
+		chunkLevel.edgesLoaded = loaded;
+	}
+	
+	private void markShadingDirty(int x, int z) {
+		int posX = x + (chunkPos.x << 4);
+		int posZ = z + (chunkPos.z << 4);
+		MapCache.markColumnDirty(world, posX - 1, posZ);
+		MapCache.markColumnDirty(world, posX, posZ + 1);
+	}
+	
+	private static boolean skipWater() {
+		boolean waterTint = ClientParams.alternateColorRender && ClientParams.waterTint;
+		return !(ClientParams.hideWater || waterTint);
+	}
+	
+	private boolean isRelevant() {
+		if (purged) return false;
 		
-		return this;
+		int viewDistance = MinecraftClient.getInstance().options.viewDistance;
+		return PosUtil.chunkDistance(chunkPos.x, chunkPos.z) <= viewDistance + 1;
+	}
+	
+	public boolean isRestoring() {
+		return this.restoring;
 	}
 	
-	public boolean update(boolean forceUpdate) {
-		if (updating) return false;		
+	public CompletableFuture<Boolean> update(Layer.Type layer, int level, boolean forceUpdate) {
+		if (restoring) return CompletableFuture.completedFuture(false);
+		
+		boolean restored = this.restored;
+		this.restored = false;
+		
+		if (updating) return CompletableFuture.completedFuture(restored);
 		if (!outdated && forceUpdate) {
 			this.outdated = forceUpdate;
 		}
 		
 		long currentTime = System.currentTimeMillis();
-		if (!outdated && currentTime - updated < ClientParams.chunkUpdateInterval) return false;
-		if (purged || !this.updateWorldChunk()) return false;
+		if (!outdated && !this.isDirty(layer, level)) {
+			if (!ClientParams.chunkPolling || currentTime - updated < ClientParams.chunkUpdateInterval) {
+				return CompletableFuture.completedFuture(restored);
+			}
+			this.markDirty();
+		}
+		if (!this.isRelevant()) return CompletableFuture.completedFuture(restored);
 		
-		CompletableFuture<Boolean> updated = chunkUpdater.run(future -> {
-			return () -> future.complete(this.updateChunkData());
-		});
+		int levelKey = levelKey(layer, level);
+		CompletableFuture<Boolean> pending = this.pendingUpdates.get(levelKey);
+		if (pending != null && !pending.isDone()) {
+			return restored ? pending.thenApply(changed -> true) : pending;
+		}
 		
-		return updated.join();
-	}
-	
-	private boolean updateWorldChunk() {
-		if(worldChunk.isEmpty()) {
-			WorldChunk lifeChunk = world.getChunkManager().getWorldChunk(getX(), getZ(), false);
-			if (lifeChunk == null || lifeChunk.isEmpty()) return false;
-			this.worldChunk = lifeChunk;
+		ChunkLevel chunkLevel = this.createChunkLevel(layer, level);
+		if (chunkLevel.isEmpty()) return CompletableFuture.completedFuture(restored);
+		if (outdated) {
+			chunkLevel.markDirty();
+			this.outdated = false;
 		}
-		return true;
+		long[] dirty = chunkLevel.takeDirty();
+		
+		long priority = PosUtil.chunkPriority(chunkPos.x, chunkPos.z);
+		pending = ChunkSnapshot.capture(world, chunkPos.x, chunkPos.z, layer, level, dirty, priority, this::isRelevant).thenCompose(snapshot -> {
+			if (snapshot == null || !this.isRelevant()) return CompletableFuture.completedFuture(null);
+			return chunkUpdater.run(this.updateKey(layer, level), priority, this::isRelevant, future -> {
+				return () -> future.complete(this.updateChunkData(snapshot, chunkLevel, dirty, layer, level));
+			});
+		}).handle((changed, ex) -> {
+			if (changed == null) {
+				chunkLevel.markDirty(dirty);
+				return false;
+			}
+			return changed;
+		});
+		this.pendingUpdates.put(levelKey, pending);
+		
+		return restored ? pending.thenApply(changed -> true) : pending;
 	}
 	
-	private boolean updateChunkData() {
+	private boolean updateChunkData(ChunkSnapshot snapshot, ChunkLevel chunkLevel, long[] dirty, Layer.Type layer, int level) {
+		if (chunkLevel != this.getChunkLevel(layer, level)) return false;
+		
 		this.updating = true;
 		
-		MapCache mapData = MapCache.get();
-		MapChunk eastChunk = mapData.getCurrentChunk(chunkPos.x + 1, chunkPos.z);
-		MapChunk southChunk = mapData.getCurrentChunk(chunkPos.x, chunkPos.z - 1);
+		if (!chunkLevel.edgesLoaded) {
+			this.loadEdges(chunkLevel, layer, level);
+		}
 		
 		long currentTime = System.currentTimeMillis();
 		
-		ChunkLevel chunkLevel = getChunkLevel();
-		if (currentTime - chunkLevel.updated > ClientParams.chunkLevelUpdateInterval) {
-			this.updateHeighmap();
-			eastChunk.updateHeighmap();
-			southChunk.updateHeighmap();
-			
-			chunkLevel.updated = currentTime;
-		}
-		
+		boolean changed = false;
+		boolean skipWater = skipWater();
+		BlockPos.Mutable blockPos = new BlockPos.Mutable();
 		for (int x = 0; x < 16; x++) {
 			for (int z = 0; z < 16; z++) {
 				int index = x + (z << 4);
+				if (!ChunkLevel.isDirty(dirty, index)) continue;
+				if (!chunkLevel.edgesLoaded && (x == 15 || z == 0)) {
+					chunkLevel.markDirty(x, z);
+					continue;
+				}
+				
+				changed |= this.updateHeight(snapshot, chunkLevel, layer, level, x, z, skipWater);
 				
 				int posX = x + (chunkPos.x << 4);
 				int posZ = z + (chunkPos.z << 4);
-				int posY = getHeighmap()[index];
+				int posY = chunkLevel.getHeight(x, z);
 				
 				if (posY == -1) continue;
 				
-				BlockPos blockPos = new BlockPos(posX, posY, posZ);
-				BlockState blockState = this.getBlockState(blockPos);
-				BlockState worldState = worldChunk.getBlockState(blockPos);
-				if(outdated || !blockState.equals(worldState) || currentTime - refreshed > 60000) {
-					int color = ColorUtil.blockColor(worldChunk, blockPos);
-					if (color != -1) {
-						int heightDiff = MapProcessor.heightDifference(this, eastChunk, southChunk, x, posY, z);
-						
-						this.setBlockState(blockPos, worldState);
-						
-						int height = layer.value.height;
-						int bottom = 0, baseHeight = 0;
-						if (layer == Layer.Type.NETHER) {
-							bottom = level * height;
-							baseHeight = 128;
-						} else if (layer == Layer.Type.SURFACE) {
-							bottom = this.world.getSeaLevel();
-							baseHeight = 256;
-						} else {
-							bottom = level * height;
-							baseHeight = 32;
-						}
-						
-						float topoLevel = ((float) (posY - bottom) / baseHeight);						
+				blockPos.set(posX, posY, posZ);
+				BlockState worldState = snapshot.getBlockState(x, posY, z);
+				int color = ColorUtil.blockColor(snapshot, blockPos);
+				if (color != -1) {
+					int heightDiff = MapProcessor.heightDifference(chunkLevel, x, z);
+					
+					int height = layer.value.height;
+					int bottom = 0, baseHeight = 0;
+					if (layer == Layer.Type.NETHER) {
+						bottom = level * height;
+						baseHeight = 128;
+					} else if (layer == Layer.Type.SURFACE) {
+						bottom = this.world.getSeaLevel();
+						baseHeight = 256;
+					} else {
+						bottom = level * height;
+						baseHeight = 32;
+					}
+					
+					byte topoLevel = (byte) (((float) (posY - bottom) / baseHeight) * 100);
+					
+					chunkLevel.setBlockState(x, z, worldState);
+					if (chunkLevel.colormap[index] != color || chunkLevel.levelmap[index] != heightDiff ||
+						chunkLevel.topomap[index] != topoLevel) {
 						
-						chunkLevel.topomap[index] = (int) (topoLevel * 100);
+						chunkLevel.topomap[index] = topoLevel;
 						chunkLevel.colormap[index] = color;
-						chunkLevel.levelmap[index] = heightDiff;
-						chunkLevel.colordata[index] = ColorUtil.proccessColor(color, heightDiff, topoLevel);
+						chunkLevel.levelmap[index] = (byte) heightDiff;
 						
 						this.saved = false;
-					}
-				} else {				
-					int color = chunkLevel.colormap[index];
-					if (color != -1) {
-						int heightDiff = MapProcessor.heightDifference(this, eastChunk, southChunk, x, posY, z);
-						if (chunkLevel.levelmap[index] != heightDiff) {
-							float topoLevel = chunkLevel.topomap[index] / 100F;
-							chunkLevel.levelmap[index] = heightDiff;
-							chunkLevel.colordata[index] = ColorUtil.proccessColor(color, heightDiff, topoLevel);
-							this.saved = false;
-						}
+						changed = true;
 					}
 				}
 			}
 		}
 		
 		this.updated = currentTime;
-		this.refreshed = currentTime;
-		this.outdated = false;
 		this.updating = false;
 		
-		return this.saveNeeded();
+		return changed;
+	}
+	
+	public int[] getColorData(Layer.Type layer, int level) {
+		ChunkLevel chunkLevel = this.getChunkLevel(layer, level);
+		int[] colorData = new int[256];
+		for (int i = 0; i < 256; i++) {
+			int color = chunkLevel.colormap[i];
+			colorData[i] = color != -1 ? color | 0xFF000000 : Colors.BLACK;
+		}
+		
+		return colorData;
 	}
 	
-	public int[] getColorData() {
-		ChunkLevel chunkLevel = this.getChunkLevel();
-		return chunkLevel.colordata.clone();
+	public int[] getShadeData(Layer.Type layer, int level) {
+		ChunkLevel chunkLevel = this.getChunkLevel(layer, level);
+		int[] shadeData = new int[256];
+		for (int i = 0; i < 256; i++) {
+			if (chunkLevel.colormap[i] == -1) continue;
+			
+			int heightDiff = chunkLevel.levelmap[i] + 128;
+			int topoLevel = chunkLevel.topomap[i] + 128;
+			int depth = chunkLevel.floormap[i] != -1 ? chunkLevel.heightmap[i] - chunkLevel.floormap[i] : 0;
+			depth = Math.max(0, Math.min(255, depth));
+			shadeData[i] = 0xFF000000 | (heightDiff << 16) | (topoLevel << 8) | depth;
+		}
+		
+		return shadeData;
 	}
 	
 	public int getBlockColor(int x, int z) {
-		int index = x + (z << 4);
-		ChunkLevel chunkLevel = getChunkLevel();
-		return chunkLevel.colordata[index];
+		return getChunkLevel().colormap[x + (z << 4)];
+	}
+	
+	void purge() {
+		this.purged = true;
 	}
 	
 	public boolean saveNeeded() {
@@ -337,62 +464,136 @@ public class MapChunk {
 		return this.slime;
 	}
 	
-	public void store(CompoundTag data) {
-		this.levels.forEach((layer, levels) -> {
-			ListTag levelsTag = new ListTag();
-			
-			CompoundTag level;
-			for(int i = 0; i < levels.length; i++) {
-				int lvl = i;
-				ChunkLevel chunkLevel = Arrays.stream(levels).filter((levelx) -> {
-					return levelx != null && levelx.level == lvl;
-				}).findFirst().orElse(EMPTY_LEVEL);
-		         
-				if (chunkLevel.isEmpty()) continue;
-	            
-				level = new CompoundTag();
-	            
-	            level.putInt("Level", lvl);
-	            chunkLevel.container().write(level, "Palette", "BlockStates");
-	            chunkLevel.store(level);
-
-	            levelsTag.add(level);
-			}
-			
-			if (!levelsTag.isEmpty()) data.put(layer.name, levelsTag);
-		});
+	public byte[] store() {
+		if (levels.isEmpty()) return null;
 		
+		byte[] data = writeLevels(levels);
 		this.saved = true;
+		
+		return data;
 	}
 	
 	private void restore() {
-		CompoundTag chunkData = StorageUtil.getCache(chunkPos);
-		if (chunkData.isEmpty()) return;
+		StorageUtil.getCacheAsync(chunkPos).thenAccept(this::restore).whenComplete((result, ex) -> {
+			if (ex != null) {
+				JustMap.LOGGER.catching(ex);
+			}
+			this.restoring = false;
+			this.restored = true;
+			this.pushRestoredEdges();
+			MapCache.markChunkRestored(world, chunkPos.x, chunkPos.z);
+		});
+	}
+	
+	private void pushRestoredEdges() {
+		MapChunk westChunk = MapCache.findChunk(world, chunkPos.x - 1, chunkPos.z);
+		MapChunk southChunk = MapCache.findChunk(world, chunkPos.x, chunkPos.z + 1);
+		if (westChunk == null && southChunk == null) return;
+		
+		this.levels.forEach((layer, layerLevels) -> {
+			for (int level = 0; level < layerLevels.length; level++) {
+				ChunkLevel chunkLevel = layerLevels[level];
+				if (chunkLevel == null || chunkLevel.isEmpty()) continue;
+				
+				ChunkLevel westLevel = westChunk != null ? westChunk.getChunkLevel(layer.type, level) : ChunkLevel.EMPTY;
+				ChunkLevel southLevel = southChunk != null ? southChunk.getChunkLevel(layer.type, level) : ChunkLevel.EMPTY;
+				for (int i = 0; i < 16; i++) {
+					if (!westLevel.isEmpty()) westLevel.setEastEdge(i, chunkLevel.getFloor(0, i));
+					if (!southLevel.isEmpty()) southLevel.setNorthEdge(i, chunkLevel.getFloor(i, 15));
+				}
+			}
+		});
+		int posX = chunkPos.x << 4;
+		int posZ = chunkPos.z << 4;
+		for (int i = 0; i < 16; i++) {
+			if (westChunk != null) MapCache.markColumnDirty(world, posX - 1, posZ + i);
+			if (southChunk != null) MapCache.markColumnDirty(world, posX + i, posZ + 16);
+		}
+	}
+	
+	private void restore(ByteBuffer chunkData) {
+		if (chunkData == null || !chunkData.hasRemaining()) return;
+		
+		try {
+			int version = chunkData.get() & 255;
+			if (version != FORMAT_VERSION) {
+				JustMap.LOGGER.logWarning(String.format("Discarding chunk data %s with unknown format version %d", chunkPos, version));
+				return;
+			}
+			int layers = chunkData.get() & 255;
+			for (int i = 0; i < layers; i++) {
+				Layer.Type layer = Layer.Type.valueOf(ChunkLevel.readString(chunkData));
+				int count = chunkData.get() & 255;
+				for (int j = 0; j < count; j++) {
+					int lvl = chunkData.get() & 255;
+					ChunkLevel chunkLevel = this.createChunkLevel(layer, lvl);
+					if (chunkLevel.isEmpty()) {
+						chunkLevel = new ChunkLevel(lvl);
+					}
+					chunkLevel.read(chunkData);
+				}
+			}
+		} catch (Exception ex) {
+			JustMap.LOGGER.logWarning("Can't restore chunk data", chunkPos, ex);
+		}
+	}
+	
+	private static byte[] writeLevels(Map<Layer, ChunkLevel[]> levels) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream output = new DataOutputStream(bytes)) {
+			output.writeByte(FORMAT_VERSION);
+			output.writeByte(levels.size());
+			for (Map.Entry<Layer, ChunkLevel[]> entry : levels.entrySet()) {
+				int count = 0;
+				for (ChunkLevel chunkLevel : entry.getValue()) {
+					if (chunkLevel != null && !chunkLevel.isEmpty()) count++;
+				}
+				ChunkLevel.writeString(output, entry.getKey().type.name());
+				output.writeByte(count);
+				for (ChunkLevel chunkLevel : entry.getValue()) {
+					if (chunkLevel == null || chunkLevel.isEmpty()) continue;
+					
+					output.writeByte(chunkLevel.level);
+					chunkLevel.write(output);
+				}
+			}
+		} catch (IOException ex) {
+			JustMap.LOGGER.logError("Can't store chunk data", ex);
+			return null;
+		}
 		
+		return bytes.toByteArray();
+	}
+	
+	static byte[] migrate(CompoundTag chunkData) {
+		Map<Layer, ChunkLevel[]> levels = new HashMap<>();
 		final int dataVer = chunkData.contains("version") ? chunkData.getInt("version") : -1;
-		this.levels.forEach((layer, levels) -> {
-			ListTag listTag = chunkData.getList(layer.name, 10);
+		for (Layer.Type layer : Layer.Type.values()) {
+			if (!chunkData.contains(layer.value.name, 9)) continue;
+			
+			ChunkLevel[] layerLevels = levels.computeIfAbsent(layer.value, (layerValue) -> {
+				return new ChunkLevel[256 / layerValue.height];
+			});
+			ListTag listTag = chunkData.getList(layer.value.name, 10);
 			for(int i = 0; i < listTag.size(); ++i) {
 				CompoundTag level = listTag.getCompound(i);
 				int lvl = level.getInt("Level");
-				if (level.contains("Palette", 9) && level.contains("BlockStates", 12)) {
-					ChunkLevel chunkLevel = this.getChunkLevel(layer.type, lvl);
-					if (chunkLevel.isEmpty()) continue;
-					
-					chunkLevel.container().read(level.getList("Palette", 10), level.getLongArray("BlockStates"));
-					chunkLevel.load(level);
-					
-					if (dataVer == -1) {
-						for (int j = 0; j < chunkLevel.colormap.length; j++) {
-							int color = chunkLevel.colormap[j];
-							if (color != -1) {
-								chunkLevel.colormap[j] = ColorUtil.ABGRtoARGB(color);
-							}
+				if (lvl < 0 || lvl >= layerLevels.length || !level.contains("Palette", 9)) continue;
+				
+				ChunkLevel chunkLevel = new ChunkLevel(lvl);
+				chunkLevel.load(level, dataVer);
+				if (dataVer == -1) {
+					for (int j = 0; j < chunkLevel.colormap.length; j++) {
+						int color = chunkLevel.colormap[j];
+						if (color != -1) {
+							chunkLevel.colormap[j] = ColorUtil.ABGRtoARGB(color);
 						}
-						this.saved = false;
 					}
 				}
-			}			
-		});
+				layerLevels[lvl] = chunkLevel;
+			}
+		}
+		
+		return writeLevels(levels);
 	}
 }
@@ -4,92 +4,65 @@ import ru.bulldog.justmap.client.config.ClientParams;
 import ru.bulldog.justmap.util.StateUtil;
 
 import net.minecraft.block.BlockState;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.ChunkPos;
-import net.minecraft.world.chunk.WorldChunk;
 
 public class MapProcessor {
 	
-	public static int getTopBlockY(MapChunk mapChunk, int x, int y, int z, boolean liquids) {
-		WorldChunk worldChunk = mapChunk.getWorldChunk();
-		ChunkPos chunkPos = worldChunk.getPos();		
-		
-		if (worldChunk.isEmpty()) return -1;
-		
-		int posX = x + (chunkPos.x << 4);
-		int posZ = z + (chunkPos.z << 4);
-		
+	public final static int MAX_DIFF = 9;
+	
+	public static int getTopBlockY(ChunkSnapshot snapshot, Layer.Type layer, int level, int x, int y, int z, boolean liquids) {
 		boolean plants = !ClientParams.hidePlants;
 		
-		Layer.Type layer = mapChunk.getLayer();
 		if ((layer.equals(Layer.Type.NETHER) || layer.equals(Layer.Type.CAVES))) {
-			int level = mapChunk.currentLevel();
-			int floor = level * layer.value.height;
-			for (int i = floor + (layer.value.height - 1); i >= floor; i--) {
-				BlockPos worldPos = loopPos(worldChunk, new BlockPos(posX, i, posZ), 0, liquids, plants);
-				BlockPos overPos = new BlockPos(posX, worldPos.getY() + 1, posZ);
-				if (StateUtil.checkState(worldChunk.getBlockState(overPos), liquids, plants)) {
-					return worldPos.getY();
+			int bottom = level * layer.value.height;
+			for (int i = bottom + (layer.value.height - 1); i >= bottom; i--) {
+				int posY = scanColumn(snapshot, x, i, z, 0, -1, liquids, plants);
+				if (StateUtil.checkState(snapshot.getBlockState(x, posY + 1, z), liquids, plants)) {
+					return posY;
 				}
 			}
 		} else {
-			BlockPos worldPos = loopPos(worldChunk, new BlockPos(posX, y, posZ), 0, liquids, plants);
-			BlockState overState = worldChunk.getBlockState(new BlockPos(posX, worldPos.getY() + 1, posZ));
-			if (StateUtil.checkState(overState, liquids, plants)) {
-				return worldPos.getY();
+			int floor = -1;
+			if (!liquids && !plants && snapshot.hasOceanFloor()) {
+				floor = snapshot.getOceanFloorY(x, z);
+			}
+			int posY = scanColumn(snapshot, x, y, z, 0, floor, liquids, plants);
+			if (StateUtil.checkState(snapshot.getBlockState(x, posY + 1, z), liquids, plants)) {
+				return posY;
 			}
 		}
 		
 		return -1;
 	}
 	
-	private static BlockPos loopPos(WorldChunk worldChunk, BlockPos pos, int stop, boolean liquids, boolean plants) {
-		boolean loop = false;		
-		do {
-			loop = StateUtil.checkState(worldChunk.getBlockState(pos), liquids, plants);			
-			loop &= pos.getY() > stop;
-			if (loop) pos = pos.down();
-		} while (loop);
+	private static int scanColumn(ChunkSnapshot snapshot, int x, int y, int z, int stop, int floor, boolean liquids, boolean plants) {
+		while (y > stop) {
+			BlockState state = snapshot.getBlockState(x, y, z);
+			if (!StateUtil.checkState(state, liquids, plants)) break;
+			if (floor > stop && floor < y && StateUtil.isLiquid(state, false)) {
+				y = floor;
+				continue;
+			}
+			y--;
+		}
 		
-		return pos;
+		return y;
 	}
 	
-	private static int checkLiquids(MapChunk mapChunk, int x, int y, int z) {
-		WorldChunk worldChunk = mapChunk.getWorldChunk();
-		if (worldChunk.isEmpty() || y == -1) return 0;
+	public static int getFloorY(ChunkSnapshot snapshot, Layer.Type layer, int level, int x, int y, int z) {
+		if (y == -1) return -1;
 		
-		BlockPos pos = new BlockPos(x + (mapChunk.getX() << 4), y, z + (mapChunk.getZ() << 4));
-		BlockState state = worldChunk.getBlockState(pos);
+		BlockState state = snapshot.getBlockState(x, y, z);
 		if (StateUtil.isLiquid(state, false)) {
-			y = getTopBlockY(mapChunk, x, y, z, false);
+			y = getTopBlockY(snapshot, layer, level, x, y, z, false);
 		}
 		
 		return y;
 	}
 	
-	public static int heightDifference(MapChunk mapChunk, MapChunk eastChunk, MapChunk southChunk, int x, int y, int z) {
-		int ex = x + 1;
-		int sz = z - 1;
-		
-		int east, south;
-		if (ex > 15) {			
-			ex -= 16;
-			east = eastChunk.getHeighmap()[ex + (z << 4)];			
-			east = checkLiquids(eastChunk, ex, east, z);
-		} else {
-			east = mapChunk.getHeighmap()[ex + (z << 4)];
-			east = checkLiquids(mapChunk, ex, east, z);
-		}
-		if (sz < 0) {			
-			sz += 16;
-			south = southChunk.getHeighmap()[x + (sz << 4)];
-			south = checkLiquids(southChunk, x, south, sz);
-		} else {			
-			south = mapChunk.getHeighmap()[x + (sz << 4)];
-			south = checkLiquids(mapChunk, x, south, sz);
-		}
-		
-		y = checkLiquids(mapChunk, x, y, z);
+	public static int heightDifference(ChunkLevel chunkLevel, int x, int z) {
+		int east = x < 15 ? chunkLevel.getFloor(x + 1, z) : chunkLevel.eastEdge[z];
+		int south = z > 0 ? chunkLevel.getFloor(x, z - 1) : chunkLevel.northEdge[x];
+		int y = Math.max(0, chunkLevel.getFloor(x, z));
 		
 		east = east > 0 ? east - y : 0;
 		south = south > 0 ? south - y : 0;
@@ -97,8 +70,7 @@ public class MapProcessor {
 		int diff = east - south;
 		if (diff == 0) return 0;
 		
-		int maxDiff = ClientParams.terrainStrength;
-		diff = diff < 0 ? Math.max(-maxDiff, diff) : Math.min(maxDiff, diff);
+		diff = diff < 0 ? Math.max(-MAX_DIFF, diff) : Math.min(MAX_DIFF, diff);
 		
 		return diff;
 	}
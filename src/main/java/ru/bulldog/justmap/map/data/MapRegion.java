@@ -1,20 +1,32 @@
 package ru.bulldog.justmap.map.data;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.lwjgl.opengl.GL11;
 
 import com.mojang.blaze3d.systems.RenderSystem;
 
+import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.render.BufferBuilder;
 import net.minecraft.client.render.Tessellator;
 import net.minecraft.client.render.VertexFormats;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 
 import ru.bulldog.justmap.JustMap;
 import ru.bulldog.justmap.client.config.ClientParams;
+import ru.bulldog.justmap.client.render.MapShader;
 import ru.bulldog.justmap.client.render.MapTexture;
+import ru.bulldog.justmap.util.ColorUtil;
 import ru.bulldog.justmap.util.Colors;
+import ru.bulldog.justmap.util.DrawHelper;
+import ru.bulldog.justmap.util.PosUtil;
 import ru.bulldog.justmap.util.StorageUtil;
 import ru.bulldog.justmap.util.TaskManager;
 
@@ -22,18 +34,31 @@ public class MapRegion {
 	
 	private static Tessellator tessellator = Tessellator.getInstance();
 	private static BufferBuilder builder = tessellator.getBuffer();
-	private static TaskManager worker = TaskManager.getManager("region-data");
+	private static TaskManager worker = TaskManager.getManager("region-data", ClientParams.regionThreads);
+	private static TaskManager tileWorker = TileStore.WORKER;
 	
 	private final RegionPos pos;
-	private final MapTexture image;
-	private final MapTexture overlay;
+	private MapTexture image;
+	private MapTexture shade;
+	private MapTexture overlay;
+	private MapTexture baked;
+	
+	private final AtomicLongArray loadedChunks = new AtomicLongArray(16);
+	private final AtomicLongArray dirtyChunks = new AtomicLongArray(16);
+	private final TileStore tiles = new TileStore();
 	
-	private Layer.Type layer;
-	private int level;
+	private volatile Layer.Type layer;
+	private volatile int level;
 
+	private volatile boolean ready = false;
+	private volatile boolean dirty = true;
+	private volatile boolean refill = true;
+	private volatile boolean bakeNeeded = true;
+	private volatile boolean baking = false;
+	private volatile int bakedShading = -1;
 	private boolean needUpdate = false;
 	private boolean renewOverlay = false;
-	private boolean updating = false;
+	private volatile boolean updating = false;
 	private boolean hideWater = false;
 	private boolean waterTint = true;
 	private boolean alternateRender = true;
@@ -44,17 +69,40 @@ public class MapRegion {
 	public boolean surfaceOnly = false;
 	
 	public long updated = 0;
+	public long requested = System.currentTimeMillis();
+	public long lastDrawn = System.currentTimeMillis();
 	
 	public MapRegion(BlockPos blockPos, Layer.Type layer, int level) {
 		this.pos = new RegionPos(blockPos);
-		this.image = new MapTexture(512, 512);
-		this.overlay = new MapTexture(512, 512);
-		this.image.fill(Colors.BLACK);
-		this.overlay.fill(Colors.TRANSPARENT);
 		this.layer = layer;
 		this.level = level;
-		this.loadImage();
-		this.updateTexture();
+		this.initLoadedChunks();
+		tileWorker.execute(() -> {
+			this.image = new MapTexture(512, 512);
+			this.shade = new MapTexture(512, 512);
+			this.overlay = new MapTexture(512, 512);
+			this.overlay.fill(Colors.TRANSPARENT);
+			this.loadRegion();
+		});
+	}
+	
+	public static void setUpdateThreads(int threads) {
+		worker.setThreads(threads);
+	}
+	
+	private void initLoadedChunks() {
+		World world = MinecraftClient.getInstance().world;
+		if (world == null) return;
+		
+		int chunkX = pos.x << 5;
+		int chunkZ = pos.z << 5;
+		for (int x = 0; x < 32; x++) {
+			for (int z = 0; z < 32; z++) {
+				if (world.getChunkManager().isChunkLoaded(chunkX + x, chunkZ + z)) {
+					setBit(loadedChunks, x + (z << 5), true);
+				}
+			}
+		}
 	}
 	
 	public int getX() {
@@ -66,10 +114,70 @@ public class MapRegion {
 	}
 	
 	public void updateTexture() {
-		if (updating) return;
-		this.updateMapParams();
-		worker.execute(this::updateImage);
+		if (updating || !ready) return;
 		this.updating = true;
+		this.updateMapParams();
+		
+		long priority = PosUtil.chunkPriority((pos.x << 5) + 16, (pos.z << 5) + 16);
+		worker.run(pos.toLong(), priority, this::isRequested, future -> () -> {
+			this.updateImage().whenComplete((result, ex) -> future.complete(null));
+		}).whenComplete((result, ex) -> {
+			this.updating = false;
+		});
+	}
+	
+	public boolean isUpdating() {
+		return this.updating;
+	}
+	
+	private boolean isRequested() {
+		return System.currentTimeMillis() - requested < 3000;
+	}
+	
+	public void markDirty() {
+		this.dirty = true;
+	}
+	
+	public void markDirty(int chunkX, int chunkZ) {
+		setBit(dirtyChunks, chunkIndex(chunkX, chunkZ), true);
+		this.dirty = true;
+	}
+	
+	public void setChunkLoaded(int chunkX, int chunkZ, boolean loaded) {
+		setBit(loadedChunks, chunkIndex(chunkX, chunkZ), loaded);
+		if (loadedOverlay) {
+			this.renewOverlay = true;
+			this.dirty = true;
+		}
+	}
+	
+	private static int chunkIndex(int chunkX, int chunkZ) {
+		return (chunkX & 31) + ((chunkZ & 31) << 5);
+	}
+	
+	private static void setBit(AtomicLongArray bits, int index, boolean value) {
+		long mask = 1L << (index & 63);
+		if (value) {
+			bits.accumulateAndGet(index >> 6, mask, (current, bit) -> current | bit);
+		} else {
+			bits.accumulateAndGet(index >> 6, ~mask, (current, bit) -> current & bit);
+		}
+	}
+	
+	private static boolean getBit(long[] bits, int index) {
+		return (bits[index >> 6] & (1L << (index & 63))) != 0L;
+	}
+	
+	public boolean needUpdate() {
+		if (dirty || ClientParams.forceUpdate || ClientParams.chunkPolling) return true;
+		if (tiles.needSave()) return true;
+		
+		boolean waterTint = ClientParams.alternateColorRender && ClientParams.waterTint;
+		return ClientParams.hideWater != hideWater || this.waterTint != waterTint ||
+			   ClientParams.alternateColorRender != alternateRender ||
+			   ClientParams.showGrid != gridOverlay ||
+			   ClientParams.showSlime != slimeOverlay ||
+			   ClientParams.showLoadedChunks != loadedOverlay;
 	}
 	
 	private void updateMapParams() {
@@ -101,48 +209,87 @@ public class MapRegion {
 		}
 	}
 	
-	private void updateImage() {
+	private CompletableFuture<Void> updateImage() {
+		this.dirty = false;
+		
 		MapCache mapData = MapCache.get();
+		List<CompletableFuture<Void>> updates = new ArrayList<>();
+		boolean refill = this.refill;
+		boolean complete = true;
+		Layer.Type layer = surfaceOnly ? Layer.Type.SURFACE : this.layer;
+		int level = surfaceOnly ? 0 : this.level;
+		boolean scan = !surfaceOnly || MapCache.currentLayer() == Layer.Type.SURFACE;
+		
+		long[] loaded = new long[16];
+		long[] visit = new long[16];
+		for (int i = 0; i < 16; i++) {
+			loaded[i] = loadedChunks.get(i);
+			visit[i] = loaded[i] | dirtyChunks.getAndSet(i, 0L);
+		}
 		
 		int regX = this.pos.x << 9;
-		int regZ = this.pos.z << 9;		
+		int regZ = this.pos.z << 9;
 		for (int x = 0; x < 512; x += 16) {
 			int chunkX = (regX + x) >> 4;
 			for (int y = 0; y < 512; y += 16) {
 				int chunkZ = (regZ + y) >> 4;
+				int index = chunkIndex(chunkX, chunkZ);
 				
-				MapChunk mapChunk;
-				boolean updated = false;
-				if (surfaceOnly) {
-					mapChunk = mapData.getChunk(Layer.Type.SURFACE, 0, chunkX, chunkZ);
-					if (MapCache.currentLayer() == Layer.Type.SURFACE) {
-						updated = mapChunk.update(needUpdate);
-					}
-				} else {
-					mapChunk = mapData.getCurrentChunk(chunkX, chunkZ);
-					updated = mapChunk.update(needUpdate);
+				if (renewOverlay) {
+					this.updateOverlay(mapData.world, x, y, chunkX, chunkZ, getBit(loaded, index));
 				}
-				if (updated) {
-					this.image.writeChunkData(x, y, mapChunk.getColorData());
+				if (!complete || !refill && !getBit(visit, index)) continue;
+				
+				if (!needUpdate && !this.isRequested()) {
+					for (int i = 0; i < 16; i++) {
+						long bits = visit[i];
+						dirtyChunks.accumulateAndGet(i, bits, (current, mask) -> current | mask);
+					}
+					this.dirty = true;
+					complete = false;
+					continue;
 				}
-				if (renewOverlay) {
-					this.updateOverlay(x, y, mapChunk);
+				
+				MapChunk mapChunk = mapData.getChunk(layer, level, chunkX, chunkZ);
+				CompletableFuture<Boolean> updated;
+				if (scan) {
+					updated = mapChunk.update(layer, level, needUpdate);
+				} else {
+					updated = CompletableFuture.completedFuture(false);
 				}
+				
+				final int imgX = x, imgY = y;
+				updates.add(updated.thenAccept(changed -> {
+					if (!surfaceOnly && (layer != this.layer || level != this.level)) return;
+					if (changed || refill) {
+						int[] colors = mapChunk.getColorData(layer, level);
+						int[] shade = mapChunk.getShadeData(layer, level);
+						this.image.blitChunk(imgX, imgY, colors);
+						this.shade.blitChunk(imgX, imgY, shade);
+						this.tiles.markChanged(index);
+						this.updateLods(mapData, index, colors, shade);
+						this.bakeNeeded = true;
+					}
+				}));
 			}
 		}
-		if (image.changed) this.saveImage();
-		this.updated = System.currentTimeMillis();
 		this.needUpdate = false;
 		this.renewOverlay = false;
-		this.updating = false;
+		if (complete) this.refill = false;
+		
+		return CompletableFuture.allOf(updates.toArray(new CompletableFuture[0])).handle((result, ex) -> {
+			this.saveTiles(false);
+			this.updated = System.currentTimeMillis();
+			return null;
+		});
 	}
 	
-	private void updateOverlay(int x, int y, MapChunk mapChunk) {
+	private void updateOverlay(World world, int x, int y, int chunkX, int chunkZ, boolean loaded) {
 		this.overlay.fill(x, y, 16, 16, Colors.TRANSPARENT);
-		if (loadedOverlay && mapChunk.isChunkLoaded()) {
+		if (loadedOverlay && loaded) {
 			this.overlay.fill(x, y, 16, 16, Colors.LOADED_OVERLAY);
 		}
-		if (slimeOverlay && mapChunk.hasSlime()) {
+		if (slimeOverlay && MapChunk.isSlimeChunk(world, chunkX, chunkZ)) {
 			this.overlay.fill(x, y, 16, 16, Colors.SLIME_OVERLAY);
 		}
 		if (gridOverlay) {
@@ -162,26 +309,112 @@ public class MapRegion {
 		return this.level;
 	}
 	
-	public void swapLayer(Layer.Type layer, int level) {
+	public synchronized void swapLayer(Layer.Type layer, int level) {
+		if (ready) {
+			this.saveTiles(true);
+		}
 		this.layer = layer;
 		this.level = level;
-		this.loadImage();
+		if (!ready) return;
+		
+		this.ready = false;
+		tileWorker.execute(this::loadRegion);
+	}
+	
+	private void loadRegion() {
+		while (true) {
+			Layer.Type layer = this.layer;
+			int level = this.level;
+			this.loadImage();
+			synchronized (this) {
+				if (layer == this.layer && level == this.level) {
+					this.ready = true;
+					break;
+				}
+			}
+		}
 		this.updateTexture();
 	}
 	
-	private void saveImage() {
-		File imgFile = this.imageFile();
-		JustMap.WORKER.execute(() -> this.image.saveImage(imgFile));
+	private void updateLods(MapCache mapData, int index, int[] colors, int[] shade) {
+		int[] baked = new int[colors.length];
+		ColorUtil.proccessColors(colors, shade, baked);
+		Layer.Type layer = surfaceOnly ? Layer.Type.SURFACE : this.layer;
+		int level = surfaceOnly ? 0 : this.level;
+		mapData.updateLods(layer, level, pos.x, pos.z, index, baked);
+	}
+	
+	private void updateLods(MapCache mapData) {
+		int[] colors = this.image.getPixels();
+		int[] shade = this.shade.getPixels();
+		for (int index = 0; index < 1024; index++) {
+			int x = (index & 31) << 4;
+			int y = (index >> 5) << 4;
+			int[] tileColors = new int[256];
+			int[] tileShade = new int[256];
+			for (int j = 0; j < 16; j++) {
+				System.arraycopy(colors, x + (y + j) * 512, tileColors, j << 4, 16);
+				System.arraycopy(shade, x + (y + j) * 512, tileShade, j << 4, 16);
+			}
+			this.updateLods(mapData, index, tileColors, tileShade);
+		}
+	}
+	
+	private void saveTiles(boolean force) {
+		this.tiles.save(force, this.tilesFile(), image, shade);
 	}
 	
 	private void loadImage() {
+		this.image.fill(Colors.BLACK);
+		this.shade.fill(Colors.TRANSPARENT);
+		
+		File tilesFile = this.tilesFile();
 		File imgFile = this.imageFile();
-		this.image.loadImage(imgFile);
+		File shadeFile = this.shadeFile();
+		Int2ObjectMap<byte[]> warmTiles = TileStore.takeWarm(tilesFile);
+		if (warmTiles != null) {
+			this.refill = !this.tiles.inflate(warmTiles, image, shade);
+		} else if (tilesFile.exists()) {
+			this.refill = !this.tiles.load(tilesFile, image, shade);
+		} else if (shadeFile.exists()) {
+			this.image.loadImage(imgFile);
+			this.shade.loadImage(shadeFile);
+			this.tiles.markAll();
+			this.saveTiles(true);
+			MapCache mapData = MapCache.get();
+			if (mapData != null) {
+				this.updateLods(mapData);
+			}
+			tileWorker.execute(() -> {
+				imgFile.delete();
+				shadeFile.delete();
+			});
+			this.refill = false;
+		} else {
+			this.refill = true;
+		}
+		this.bakeNeeded = true;
+	}
+	
+	private File tilesFile() {
+		return new File(this.regionDir(), String.format("r%d.%d.tiles", pos.x, pos.z));
 	}
 	
 	private File imageFile() {
+		return new File(this.regionDir(), String.format("r%d.%d.png", pos.x, pos.z));
+	}
+	
+	private File shadeFile() {
+		return new File(this.regionDir(), String.format("r%d.%d.shade.png", pos.x, pos.z));
+	}
+	
+	private File regionDir() {
+		return layerDir(surfaceOnly ? Layer.Type.SURFACE : layer, level);
+	}
+	
+	static File layerDir(Layer.Type layer, int level) {
 		File dir = StorageUtil.cacheDir();
-		if (surfaceOnly || Layer.Type.SURFACE == layer) {
+		if (Layer.Type.SURFACE == layer) {
 			dir = new File(dir, "surface/");
 		} else {
 			dir = new File(dir, String.format("%s/%d/", layer.value.name, level));
@@ -191,7 +424,7 @@ public class MapRegion {
 			dir.mkdirs();
 		}
 		
-		return new File(dir, String.format("r%d.%d.png", pos.x, pos.z));
+		return dir;
 	}
 	
 	public void draw(double x, double y, int imgX, int imgY, int width, int height, float scale) {
@@ -205,6 +438,12 @@ public class MapRegion {
 		double scW = (double) width / scale;
 		double scH = (double) height / scale;
 		
+		this.lastDrawn = System.currentTimeMillis();
+		if (!ready) {
+			DrawHelper.fill(x, y, scW, scH, Colors.BLACK);
+			return;
+		}
+		
 		RenderSystem.enableBlend();
 		RenderSystem.defaultBlendFunc();
 		
@@ -218,7 +457,23 @@ public class MapRegion {
 		if (image.changed) {
 			this.image.upload();
 		}
-		RenderSystem.bindTexture(image.getId());
+		if (shade.changed) {
+			this.shade.upload();
+		}
+		
+		boolean useShader = MapShader.isAvailable();
+		if (useShader) {
+			if (ClientParams.textureCompression) {
+				this.image.compress();
+			}
+			MapShader.begin(image.getId(), shade.getId());
+		} else {
+			MapTexture baked = this.bakedImage();
+			if (ClientParams.textureCompression) {
+				baked.compress();
+			}
+			RenderSystem.bindTexture(baked.getId());
+		}
 		if (ClientParams.textureFilter) {
 			RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR_MIPMAP_LINEAR);
 			RenderSystem.texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
@@ -231,6 +486,35 @@ public class MapRegion {
 		builder.vertex(x + w, y, 0.0).texture(u2, v1).next();
 		
 		tessellator.draw();
+		
+		if (useShader) {
+			MapShader.end();
+		}
+	}
+	
+	private MapTexture bakedImage() {
+		if (baked == null) {
+			this.baked = new MapTexture(512, 512, MapTexture.Format.RGB565);
+			this.baked.fill(Colors.BLACK);
+		}
+		
+		int shading = ColorUtil.shadingVersion();
+		if (!baking && (bakeNeeded || bakedShading != shading)) {
+			this.baking = true;
+			this.bakeNeeded = false;
+			JustMap.WORKER.execute(() -> {
+				int[] pixels = new int[512 * 512];
+				ColorUtil.proccessColors(image.getPixels(), shade.getPixels(), pixels);
+				this.baked.setPixels(pixels);
+				this.bakedShading = shading;
+				this.baking = false;
+			});
+		}
+		if (baked.changed) {
+			this.baked.upload();
+		}
+		
+		return this.baked;
 	}
 	
 	private void drawOverlay(double x, double y, double w, double h, float u1, float v1, float u2, float v2) {
@@ -247,8 +531,43 @@ public class MapRegion {
 		tessellator.draw();
 	}
 	
+	public long memoryUsage() {
+		if (!ready) return 0;
+		
+		long usage = image.memoryUsage() + shade.memoryUsage() + overlay.memoryUsage();
+		if (baked != null) {
+			usage += baked.memoryUsage();
+		}
+		return usage;
+	}
+	
+	public void evict() {
+		this.close(true);
+	}
+	
 	public void close() {
-		this.image.close();
-		this.overlay.close();
+		this.close(false);
+	}
+	
+	private synchronized void close(boolean keepWarm) {
+		if (ready) {
+			this.saveTiles(true);
+			this.ready = false;
+		}
+		File tilesFile = this.tilesFile();
+		tileWorker.execute(() -> {
+			if (keepWarm && tilesFile.exists()) {
+				TileStore.keepWarm(tilesFile, tiles.readAll(tilesFile));
+			}
+			this.tiles.close();
+			if (image != null) {
+				this.image.close();
+				this.shade.close();
+				this.overlay.close();
+			}
+		});
+		if (baked != null) {
+			this.baked.close();
+		}
 	}
 }
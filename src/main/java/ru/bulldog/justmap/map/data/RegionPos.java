@@ -21,6 +21,14 @@ public class RegionPos {
 		this.z = z;
 	}
 	
+	public static long toLong(int x, int z) {
+		return (long) x & 4294967295L | ((long) z & 4294967295L) << 32;
+	}
+	
+	public long toLong() {
+		return toLong(x, z);
+	}
+	
 	@Override
 	public String toString() {
 		return String.format("r.%d.%d", x, z);
@@ -28,7 +36,7 @@ public class RegionPos {
 	
 	@Override
 	public int hashCode() {
-		return ((x & 65535) << 16) | (z & 65535);
+		return 31 * x + z;
 	}
 	
 	@Override
@@ -1,117 +1,225 @@
 package ru.bulldog.justmap.map.data;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 
 import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtIo;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.storage.RegionFile;
 
+import ru.bulldog.justmap.JustMap;
+
 public class RegionStorage implements AutoCloseable {
-	
-	private final Long2ObjectLinkedOpenHashMap<RegionFile> cachedRegionFiles = new Long2ObjectLinkedOpenHashMap<>();
+
+	private final static int MAGIC = 0x4A4D4342;
+
+	private final Long2ObjectLinkedOpenHashMap<RegionData> cachedRegions = new Long2ObjectLinkedOpenHashMap<>();
 	private final File directory;
-	
+
 	public RegionStorage(File file) {
 		this.directory = file;
 	}
-	
-	private RegionFile getRegionFile(ChunkPos chunkPos) throws IOException {
-		long longPos = ChunkPos.toLong(chunkPos.getRegionX(), chunkPos.getRegionZ());
-		RegionFile regionFile = (RegionFile) this.cachedRegionFiles.getAndMoveToFirst(longPos);
-		
-		if (regionFile != null) {
-			return regionFile;
-		} else {
-			if (this.cachedRegionFiles.size() >= 256) {
-				((RegionFile) this.cachedRegionFiles.removeLast()).close();
-			}
 
-			if (!this.directory.exists()) {
-				this.directory.mkdirs();
+	private RegionData getRegion(ChunkPos chunkPos) {
+		int regionX = chunkPos.getRegionX();
+		int regionZ = chunkPos.getRegionZ();
+		long longPos = ChunkPos.toLong(regionX, regionZ);
+		RegionData evicted = null;
+		RegionData region;
+		synchronized (cachedRegions) {
+			region = this.cachedRegions.getAndMoveToFirst(longPos);
+			if (region == null) {
+				if (this.cachedRegions.size() >= 64) {
+					evicted = this.cachedRegions.removeLast();
+				}
+				region = new RegionData(regionX, regionZ);
+				this.cachedRegions.putAndMoveToFirst(longPos, region);
 			}
-
-			File file = new File(this.directory, "r." + chunkPos.getRegionX() + "." + chunkPos.getRegionZ() + ".mca");
-			regionFile = new RegionFile(file, this.directory, true);
-			this.cachedRegionFiles.putAndMoveToFirst(longPos, regionFile);
-			
-			return regionFile;
 		}
+		if (evicted != null) {
+			evicted.close();
+		}
+
+		return region;
 	}
 
-	public CompoundTag getTagAt(ChunkPos chunkPos) throws IOException {
-		RegionFile regionFile = this.getRegionFile(chunkPos);
-		DataInputStream dataInputStream = regionFile.getChunkInputStream(chunkPos);
-		Throwable exception = null;
+	public ByteBuffer read(ChunkPos chunkPos) throws IOException {
+		ByteBuffer compressed;
+		while (true) {
+			RegionData region = this.getRegion(chunkPos);
+			synchronized (region) {
+				if (region.closed) continue;
 
-		CompoundTag chunkTag;
-		try {
-			if (dataInputStream == null) {
-				return null;
+				compressed = region.open().read(chunkIndex(chunkPos));
+				break;
 			}
+		}
+		if (compressed == null) return null;
 
-			chunkTag = NbtIo.read(dataInputStream);
-		} catch (Throwable ex) {
-			exception = ex;
-			throw ex;
-		} finally {
-			if (dataInputStream != null) {
-				if (exception != null) {
-					try {
-						dataInputStream.close();
-					} catch (Throwable ex2) {
-						exception.addSuppressed(ex2);
-					}
-				} else {
-					dataInputStream.close();
+		return ByteBuffer.wrap(inflate(compressed));
+	}
+
+	protected void write(Map<ChunkPos, byte[]> batch) throws IOException {
+		if (batch.isEmpty()) return;
+
+		Map<ChunkPos, byte[]> compressed = deflate(batch);
+		ChunkPos first = batch.keySet().iterator().next();
+		while (true) {
+			RegionData region = this.getRegion(first);
+			synchronized (region) {
+				if (region.closed) continue;
+
+				BlobFile blobFile = region.open();
+				for (Map.Entry<ChunkPos, byte[]> entry : compressed.entrySet()) {
+					blobFile.write(chunkIndex(entry.getKey()), entry.getValue());
 				}
+				return;
 			}
 		}
+	}
 
-		return chunkTag;
+	private static Map<ChunkPos, byte[]> deflate(Map<ChunkPos, byte[]> batch) {
+		Map<ChunkPos, byte[]> compressed = new HashMap<>();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		for (Map.Entry<ChunkPos, byte[]> entry : batch.entrySet()) {
+			compressed.put(entry.getKey(), deflate(deflater, entry.getValue()));
+		}
+		deflater.end();
+
+		return compressed;
 	}
 
-	protected void write(ChunkPos chunkPos, CompoundTag compoundTag) throws IOException {
-		RegionFile regionFile = this.getRegionFile(chunkPos);
-		DataOutputStream dataOutputStream = regionFile.getChunkOutputStream(chunkPos);
-		Throwable exeption = null;
+	private static byte[] deflate(Deflater deflater, byte[] data) {
+		byte[] buffer = new byte[data.length + (data.length >> 3) + 256];
+		ByteBuffer.wrap(buffer).putInt(0, data.length);
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		int length = deflater.deflate(buffer, 4, buffer.length - 4);
 
+		return Arrays.copyOf(buffer, length + 4);
+	}
+
+	private static byte[] inflate(ByteBuffer compressed) throws IOException {
+		byte[] data = new byte[compressed.getInt()];
+		byte[] input = new byte[compressed.remaining()];
+		compressed.get(input);
+
+		Inflater inflater = new Inflater();
 		try {
-			NbtIo.write((CompoundTag) compoundTag, (DataOutput) dataOutputStream);
-		} catch (Throwable ex) {
-			exeption = ex;
-			throw ex;
-		} finally {
-			if (dataOutputStream != null) {
-				if (exeption != null) {
-					try {
-						dataOutputStream.close();
-					} catch (Throwable ex2) {
-						exeption.addSuppressed(ex2);
-					}
-				} else {
-					dataOutputStream.close();
-				}
+			inflater.setInput(input);
+			if (inflater.inflate(data) != data.length) {
+				throw new IOException("Truncated chunk data");
 			}
+			return data;
+		} catch (DataFormatException ex) {
+			throw new IOException("Corrupted chunk data", ex);
+		} finally {
+			inflater.end();
 		}
 	}
 
+	private static int chunkIndex(ChunkPos chunkPos) {
+		return chunkPos.getRegionRelativeX() + (chunkPos.getRegionRelativeZ() << 5);
+	}
+
 	@Override
 	public void close() throws Exception {
-		ObjectIterator<RegionFile> regionIterator = this.cachedRegionFiles.values().iterator();
+		synchronized (cachedRegions) {
+			ObjectIterator<RegionData> regionIterator = this.cachedRegions.values().iterator();
+			while(regionIterator.hasNext()) {
+				regionIterator.next().close();
+			}
+			this.cachedRegions.clear();
+		}
+	}
+
+	private class RegionData {
+		private final int regionX;
+		private final int regionZ;
+		private final File file;
+		private BlobFile blobFile;
+		private boolean closed = false;
+
+		private RegionData(int regionX, int regionZ) {
+			this.regionX = regionX;
+			this.regionZ = regionZ;
+			this.file = new File(directory, String.format("r.%d.%d.jmc", regionX, regionZ));
+		}
+
+		private BlobFile open() throws IOException {
+			if (blobFile != null) return blobFile;
+
+			if (!directory.exists()) {
+				directory.mkdirs();
+			}
+			Int2ObjectMap<byte[]> chunks = null;
+			if (!file.exists()) {
+				chunks = this.loadLegacy();
+			}
+			this.blobFile = new BlobFile(file, MAGIC, 1024);
+			if (chunks != null) {
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				for (Int2ObjectMap.Entry<byte[]> entry : chunks.int2ObjectEntrySet()) {
+					this.blobFile.write(entry.getIntKey(), deflate(deflater, entry.getValue()));
+				}
+				deflater.end();
+			}
+
+			return blobFile;
+		}
+
+		private Int2ObjectMap<byte[]> loadLegacy() throws IOException {
+			File legacyFile = new File(directory, String.format("r.%d.%d.mca", regionX, regionZ));
+			if (!legacyFile.exists()) return null;
 
-		while(regionIterator.hasNext()) {
-			RegionFile regionFile = (RegionFile) regionIterator.next();
-			regionFile.close();
+			Int2ObjectMap<byte[]> chunks = new Int2ObjectOpenHashMap<>();
+			try (RegionFile regionFile = new RegionFile(legacyFile, directory, false)) {
+				for (int x = 0; x < 32; x++) {
+					for (int z = 0; z < 32; z++) {
+						ChunkPos chunkPos = new ChunkPos((regionX << 5) + x, (regionZ << 5) + z);
+						try (DataInputStream input = regionFile.getChunkInputStream(chunkPos)) {
+							if (input == null) continue;
+
+							CompoundTag chunkTag = NbtIo.read(input);
+							byte[] chunkData = MapChunk.migrate(chunkTag);
+							if (chunkData != null) {
+								chunks.put(chunkIndex(chunkPos), chunkData);
+							}
+						} catch (Exception ex) {
+							JustMap.LOGGER.logWarning("Can't migrate chunk {}", chunkPos, ex);
+						}
+					}
+				}
+			}
+			legacyFile.delete();
+
+			return chunks;
+		}
+
+		private synchronized void close() {
+			this.closed = true;
+			if (blobFile != null) {
+				try {
+					this.blobFile.close();
+				} catch (IOException ex) {
+					JustMap.LOGGER.logError("Failed to close region file", ex);
+				}
+			}
 		}
-		
-		this.cachedRegionFiles.clear();
 	}
 }
@@ -2,17 +2,14 @@ package ru.bulldog.justmap.map.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.google.common.collect.Maps;
-
-import net.minecraft.nbt.CompoundTag;
 import net.minecraft.util.math.ChunkPos;
 
 import ru.bulldog.justmap.JustMap;
@@ -20,132 +17,110 @@ import ru.bulldog.justmap.util.TaskManager;
 
 public class StorageWorker implements AutoCloseable {
 
-	private final Map<File, RegionStorage> storages;
-	private final Map<ChunkPos, Result> results = Maps.newLinkedHashMap();
-	private final TaskManager worker = TaskManager.getManager("chunk-io");
+	private final static int READERS = 3;
+
+	private final Map<File, RegionStorage> storages = new ConcurrentHashMap<>();
+	private final Map<File, Map<Long, Map<Long, byte[]>>> results = new ConcurrentHashMap<>();
+	private final TaskManager reader = TaskManager.getManager("chunk-io", READERS);
+	private final TaskManager writer = TaskManager.getManager("chunk-write");
 	private final AtomicBoolean closed = new AtomicBoolean();
-	
-	private CompletableFuture<Void> future = new CompletableFuture<>();
-	
-	StorageWorker() {
-		this.storages = new HashMap<>();
-	}
-	
+
+	StorageWorker() {}
+
 	private RegionStorage getStorage(File dir) {
-		if (storages.containsKey(dir)) {
-			return storages.get(dir);
-		}
-		
-		RegionStorage storage = new RegionStorage(dir);
-		storages.put(dir, storage);
-		
-		return storage;
+		return this.storages.computeIfAbsent(dir, RegionStorage::new);
 	}
 
-	public void setResult(File dir, ChunkPos chunkPos, CompoundTag compoundTag) {
-		this.worker.run((completableFuture) -> {
-			return () -> {
-				Result result = (Result) this.results.computeIfAbsent(chunkPos, (chunkPosx) -> {
-					return new Result();
-				});
-				result.dir = dir;
-				result.nbt = compoundTag;
-				result.future.whenComplete((var1, throwable) -> {
-					if (throwable != null) {
-						completableFuture.completeExceptionally(throwable);
-					} else {
-						completableFuture.complete(null);
-					}
-				});
-			};
-		});
-		this.worker.execute(this::writeResult);
+	private static long regionKey(ChunkPos chunkPos) {
+		return RegionPos.toLong(chunkPos.getRegionX(), chunkPos.getRegionZ());
 	}
 
-	public CompoundTag getNbt(File dir, ChunkPos chunkPos) throws IOException {
-		CompletableFuture<?> completableFuture = this.worker.run((completableFuturex) -> {
+	private byte[] getResult(File dir, ChunkPos chunkPos) {
+		Map<Long, Map<Long, byte[]>> dirResults = this.results.get(dir);
+		if (dirResults == null) return null;
+
+		Map<Long, byte[]> regionResults = dirResults.get(regionKey(chunkPos));
+		return regionResults != null ? regionResults.get(chunkPos.toLong()) : null;
+	}
+
+	public void setResult(File dir, ChunkPos chunkPos, byte[] data) {
+		long region = regionKey(chunkPos);
+		this.results.computeIfAbsent(dir, (file) -> new ConcurrentHashMap<>())
+					.computeIfAbsent(region, (key) -> new ConcurrentHashMap<>())
+					.put(chunkPos.toLong(), data);
+		this.writer.execute(region, Long.MAX_VALUE, () -> true, () -> this.writeRegion(region));
+	}
+
+	public CompletableFuture<ByteBuffer> getDataAsync(File dir, ChunkPos chunkPos) {
+		byte[] result = this.getResult(dir, chunkPos);
+		if (result != null) {
+			return CompletableFuture.completedFuture(ByteBuffer.wrap(result));
+		}
+
+		return this.reader.run((completableFuture) -> {
 			return () -> {
-				Result result = (Result) this.results.get(chunkPos);
-				if (result != null) {
-					completableFuturex.complete(result.nbt);
-				} else {
-					try {
-						CompoundTag compoundTag = this.getStorage(dir).getTagAt(chunkPos);
-						completableFuturex.complete(compoundTag);
-					} catch (Exception ex) {
-						JustMap.LOGGER.logWarning("Failed to read chunk {}", chunkPos, ex);
-						completableFuturex.completeExceptionally(ex);
-					}
+				byte[] pending = this.getResult(dir, chunkPos);
+				if (pending != null) {
+					completableFuture.complete(ByteBuffer.wrap(pending));
+					return;
+				}
+				try {
+					completableFuture.complete(this.getStorage(dir).read(chunkPos));
+				} catch (Exception ex) {
+					JustMap.LOGGER.logWarning("Failed to read chunk {}", chunkPos, ex);
+					completableFuture.completeExceptionally(ex);
 				}
 			};
 		});
-
-		try {
-			return (CompoundTag) completableFuture.join();
-		} catch (CompletionException ex) {
-			if (ex.getCause() instanceof IOException) {
-				throw (IOException) ex.getCause();
-			} else {
-				throw ex;
-			}
-		}
 	}
 
 	private CompletableFuture<Void> shutdown() {
-		return this.worker.run((completableFuture) -> {
+		return this.writer.run((completableFuture) -> {
 			return () -> {
 				this.writeAll();
-				this.finish();
-				this.future = completableFuture;
-				this.worker.stop();
+				this.finish(completableFuture);
+				this.reader.stop();
+				this.writer.stop();
 			};
 		});
 	}
 
 	public CompletableFuture<Void> completeAll() {
-		return this.worker.run((completableFuture) -> {
+		return this.writer.run((completableFuture) -> {
 			return () -> {
-				CompletableFuture<?> completableFuture2 = CompletableFuture.allOf((CompletableFuture[]) this.results.values().stream().map((result) -> {
-					return result.future;
-				}).toArray((i) -> {
-					return new CompletableFuture[i];
-				}));
-				completableFuture2.whenComplete((object, throwable) -> {
-					completableFuture.complete(null);
-				});
+				this.writeAll();
+				completableFuture.complete(null);
 			};
 		});
 	}
-	
-	private boolean writeResult() {
-		Iterator<Entry<ChunkPos, Result>> iterator = this.results.entrySet().iterator();
-		if (!iterator.hasNext()) {
-			return false;
-		} else {
-			Entry<ChunkPos, Result> entry = (Entry<ChunkPos, Result>) iterator.next();
-			this.write((ChunkPos) entry.getKey(), (Result) entry.getValue());
-			iterator.remove();
-			
-			return true;
-		}
-	}
 
 	private void writeAll() {
-		this.results.forEach(this::write);
-		this.results.clear();
+		this.results.forEach((dir, dirResults) -> {
+			dirResults.keySet().forEach(this::writeRegion);
+		});
 	}
 
-	private void write(ChunkPos chunkPos, Result result) {
-		try {
-			this.getStorage(result.dir).write(chunkPos, result.nbt);
-			result.future.complete(null);
-		} catch (Exception ex) {
-			JustMap.LOGGER.logError("Failed to store chunk {}", chunkPos, ex);
-			result.future.completeExceptionally(ex);
-		}
+	private void writeRegion(long region) {
+		this.results.forEach((dir, dirResults) -> {
+			Map<Long, byte[]> regionResults = dirResults.get(region);
+			if (regionResults == null || regionResults.isEmpty()) return;
+
+			Map<ChunkPos, byte[]> batch = new HashMap<>();
+			regionResults.forEach((chunkPos, data) -> {
+				batch.put(new ChunkPos(chunkPos), data);
+			});
+			try {
+				this.getStorage(dir).write(batch);
+			} catch (Exception ex) {
+				JustMap.LOGGER.logError("Failed to store region {}", dir, ex);
+			}
+			batch.forEach((chunkPos, data) -> {
+				regionResults.remove(chunkPos.toLong(), data);
+			});
+		});
 	}
 
-	private void finish() {
+	private void finish(CompletableFuture<Void> future) {
 		Exception error = new Exception();
 		this.storages.forEach((dir, storage) -> {
 			try {
@@ -154,14 +129,14 @@ public class StorageWorker implements AutoCloseable {
 				JustMap.LOGGER.logError("Failed to close storage", ex);
 				error.addSuppressed(ex);
 			}
-		});		
+		});
 		if (error.getSuppressed().length > 0) {
-			this.future.completeExceptionally(error);
+			future.completeExceptionally(error);
 		} else {
-			this.future.complete(null);
+			future.complete(null);
 		}
 	}
-	
+
 	@Override
 	public void close() throws Exception {
 		if (this.closed.compareAndSet(false, true)) {
@@ -176,14 +151,4 @@ public class StorageWorker implements AutoCloseable {
 			}
 		}
 	}
-	
-	private static class Result {
-		private File dir;
-		private CompoundTag nbt;
-		private final CompletableFuture<Void> future;
-
-		private Result() {
-			this.future = new CompletableFuture<>();
-		}
-	}
 }
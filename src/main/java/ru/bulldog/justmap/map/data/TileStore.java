@@ -0,0 +1,268 @@
+package ru.bulldog.justmap.map.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import ru.bulldog.justmap.JustMap;
+import ru.bulldog.justmap.client.config.ClientParams;
+import ru.bulldog.justmap.client.render.MapTexture;
+import ru.bulldog.justmap.util.TaskManager;
+
+public class TileStore {
+
+	public final static TaskManager WORKER = TaskManager.getManager("region-io");
+
+	private final static int MAGIC = 0x4A4D5449;
+	private final static int TILE_SIZE = 16 * 16 * 4;
+	private final static long SAVE_DELAY = 5000;
+
+	private final static Map<File, Int2ObjectMap<byte[]>> warmTiles = new LinkedHashMap<>(16, 0.75F, true);
+	private static long warmSize = 0;
+	private static long warmEvicted = 0;
+
+	private final AtomicLongArray changedTiles = new AtomicLongArray(16);
+	private final Object storeLock = new Object();
+	private BlobFile store;
+	private File storeFile;
+	private volatile boolean closed = false;
+
+	public long lastSaved = 0;
+
+	public void markChanged(int index) {
+		long mask = 1L << (index & 63);
+		this.changedTiles.accumulateAndGet(index >> 6, mask, (current, bit) -> current | bit);
+	}
+
+	public void markAll() {
+		for (int i = 0; i < 16; i++) {
+			this.changedTiles.set(i, -1L);
+		}
+	}
+
+	public boolean hasChanged() {
+		for (int i = 0; i < 16; i++) {
+			if (changedTiles.get(i) != 0L) return true;
+		}
+		return false;
+	}
+
+	public boolean needSave() {
+		return this.hasChanged() && System.currentTimeMillis() - lastSaved >= SAVE_DELAY;
+	}
+
+	public void save(boolean force, File file, MapTexture... textures) {
+		if (closed) return;
+
+		long time = System.currentTimeMillis();
+		if (!force && time - lastSaved < SAVE_DELAY) return;
+
+		Int2ObjectMap<byte[]> tiles = new Int2ObjectOpenHashMap<>();
+		for (int i = 0; i < 16; i++) {
+			long bits = changedTiles.getAndSet(i, 0L);
+			while (bits != 0L) {
+				int index = (i << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				int x = (index & 31) << 4;
+				int y = (index >> 5) << 4;
+				byte[] tile = new byte[TILE_SIZE * textures.length];
+				for (int t = 0; t < textures.length; t++) {
+					textures[t].getTile(x, y, 16, tile, t * TILE_SIZE);
+				}
+				tiles.put(index, tile);
+			}
+		}
+		if (tiles.isEmpty()) return;
+
+		this.lastSaved = time;
+		WORKER.execute(() -> this.write(file, tiles));
+	}
+
+	private void write(File file, Int2ObjectMap<byte[]> tiles) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] buffer = new byte[0];
+		for (Int2ObjectMap.Entry<byte[]> entry : tiles.int2ObjectEntrySet()) {
+			byte[] tile = entry.getValue();
+			if (buffer.length < tile.length + 256) {
+				buffer = new byte[tile.length + 256];
+			}
+			deflater.reset();
+			deflater.setInput(tile);
+			deflater.finish();
+			int length = deflater.deflate(buffer);
+			entry.setValue(Arrays.copyOf(buffer, length));
+		}
+		deflater.end();
+
+		synchronized (storeLock) {
+			try {
+				BlobFile blobFile = this.open(file);
+				if (blobFile == null) return;
+
+				for (Int2ObjectMap.Entry<byte[]> entry : tiles.int2ObjectEntrySet()) {
+					blobFile.write(entry.getIntKey(), entry.getValue());
+				}
+			} catch (IOException ex) {
+				JustMap.LOGGER.logError("Can't save map tiles: {}", file, ex);
+			}
+		}
+	}
+
+	public boolean load(File file, MapTexture... textures) {
+		Int2ObjectMap<byte[]> data = this.readAll(file);
+		return data != null && this.inflate(data, textures);
+	}
+
+	public boolean inflate(Int2ObjectMap<byte[]> data, MapTexture... textures) {
+		Inflater inflater = new Inflater();
+		try {
+			byte[] tile = new byte[TILE_SIZE * textures.length];
+			for (Int2ObjectMap.Entry<byte[]> entry : data.int2ObjectEntrySet()) {
+				inflater.reset();
+				inflater.setInput(entry.getValue());
+				if (inflater.inflate(tile) != tile.length) continue;
+
+				int index = entry.getIntKey();
+				int x = (index & 31) << 4;
+				int y = (index >> 5) << 4;
+				for (int t = 0; t < textures.length; t++) {
+					textures[t].setTile(x, y, 16, tile, t * TILE_SIZE);
+				}
+			}
+			return true;
+		} catch (DataFormatException ex) {
+			JustMap.LOGGER.logError("Can't inflate map tiles", ex);
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	public Int2ObjectMap<byte[]> readAll(File file) {
+		synchronized (storeLock) {
+			try {
+				BlobFile blobFile = this.open(file);
+				if (blobFile == null) return null;
+
+				Int2ObjectMap<byte[]> data = new Int2ObjectOpenHashMap<>();
+				for (int index = 0; index < 1024; index++) {
+					ByteBuffer buffer = blobFile.read(index);
+					if (buffer == null) continue;
+
+					byte[] compressed = new byte[buffer.remaining()];
+					buffer.get(compressed);
+					data.put(index, compressed);
+				}
+				return data;
+			} catch (IOException ex) {
+				JustMap.LOGGER.logError("Can't load map tiles: {}", file, ex);
+				return null;
+			}
+		}
+	}
+
+	public static void keepWarm(File file, Int2ObjectMap<byte[]> data) {
+		if (data == null || data.isEmpty()) return;
+
+		long budget = (long) ClientParams.heapCacheSize << 20;
+		synchronized (warmTiles) {
+			Int2ObjectMap<byte[]> previous = warmTiles.put(file, data);
+			if (previous != null) {
+				warmSize -= sizeOf(previous);
+			}
+			warmSize += sizeOf(data);
+
+			Iterator<Int2ObjectMap<byte[]>> iterator = warmTiles.values().iterator();
+			while (warmSize > budget && iterator.hasNext()) {
+				warmSize -= sizeOf(iterator.next());
+				iterator.remove();
+				warmEvicted++;
+			}
+		}
+	}
+
+	public static Int2ObjectMap<byte[]> takeWarm(File file) {
+		synchronized (warmTiles) {
+			Int2ObjectMap<byte[]> data = warmTiles.remove(file);
+			if (data != null) {
+				warmSize -= sizeOf(data);
+			}
+			return data;
+		}
+	}
+
+	public static void clearWarm() {
+		synchronized (warmTiles) {
+			warmTiles.clear();
+			warmSize = 0;
+		}
+	}
+
+	public static int warmCount() {
+		synchronized (warmTiles) {
+			return warmTiles.size();
+		}
+	}
+
+	public static long warmSize() {
+		synchronized (warmTiles) {
+			return warmSize;
+		}
+	}
+
+	public static long warmEvicted() {
+		synchronized (warmTiles) {
+			return warmEvicted;
+		}
+	}
+
+	private static long sizeOf(Int2ObjectMap<byte[]> data) {
+		long size = 0;
+		for (byte[] tile : data.values()) {
+			size += tile.length;
+		}
+		return size;
+	}
+
+	private BlobFile open(File file) throws IOException {
+		if (closed) return null;
+		if (store != null && file.equals(storeFile)) {
+			return this.store;
+		}
+		this.closeStore();
+		this.store = new BlobFile(file, MAGIC, 1024);
+		this.storeFile = file;
+
+		return this.store;
+	}
+
+	private void closeStore() {
+		if (store == null) return;
+		try {
+			this.store.close();
+		} catch (IOException ex) {
+			JustMap.LOGGER.logError("Can't close map tiles: {}", storeFile, ex);
+		}
+		this.store = null;
+		this.storeFile = null;
+	}
+
+	public void close() {
+		synchronized (storeLock) {
+			this.closed = true;
+			this.closeStore();
+		}
+	}
+}
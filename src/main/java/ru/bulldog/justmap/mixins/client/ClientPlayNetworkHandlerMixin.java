@@ -8,12 +8,16 @@ import org.spongepowered.asm.mixin.injection.At;
 
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayNetworkHandler;
+import net.minecraft.network.packet.s2c.play.ChunkDataS2CPacket;
 import net.minecraft.network.packet.s2c.play.GameMessageS2CPacket;
 import net.minecraft.network.packet.s2c.play.HealthUpdateS2CPacket;
+import net.minecraft.network.packet.s2c.play.LightUpdateS2CPacket;
+import net.minecraft.network.packet.s2c.play.UnloadChunkS2CPacket;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.network.MessageType;
 import ru.bulldog.justmap.map.MapGameRules;
+import ru.bulldog.justmap.map.data.MapCache;
 import ru.bulldog.justmap.map.waypoint.Waypoint;
 
 @Mixin(ClientPlayNetworkHandler.class)
@@ -50,4 +54,19 @@ public abstract class ClientPlayNetworkHandlerMixin {
 	    	Waypoint.createOnDeath(dimension, playerPos);
 	    }
 	}
+	
+	@Inject(method = "onChunkData", at = @At("TAIL"))
+	public void onChunkData(ChunkDataS2CPacket chunkDataS2CPacket, CallbackInfo ci) {
+		MapCache.setChunkLoaded(this.client.world, chunkDataS2CPacket.getX(), chunkDataS2CPacket.getZ(), true);
+	}
+	
+	@Inject(method = "onUnloadChunk", at = @At("TAIL"))
+	public void onUnloadChunk(UnloadChunkS2CPacket unloadChunkS2CPacket, CallbackInfo ci) {
+		MapCache.setChunkLoaded(this.client.world, unloadChunkS2CPacket.getX(), unloadChunkS2CPacket.getZ(), false);
+	}
+	
+	@Inject(method = "onLightUpdate", at = @At("TAIL"))
+	public void onLightUpdate(LightUpdateS2CPacket lightUpdateS2CPacket, CallbackInfo ci) {
+		MapCache.markChunkDirty(this.client.world, lightUpdateS2CPacket.getChunkX(), lightUpdateS2CPacket.getChunkZ());
+	}
 }
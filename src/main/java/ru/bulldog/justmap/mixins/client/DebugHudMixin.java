@@ -0,0 +1,23 @@
+package ru.bulldog.justmap.mixins.client;
+
+import java.util.List;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import net.minecraft.client.gui.hud.DebugHud;
+
+import ru.bulldog.justmap.map.data.MapCache;
+
+@Mixin(DebugHud.class)
+public abstract class DebugHudMixin {
+	
+	@Inject(method = "getLeftText", at = @At("RETURN"))
+	protected void addCacheInfo(CallbackInfoReturnable<List<String>> cir) {
+		List<String> lines = cir.getReturnValue();
+		lines.add("");
+		lines.addAll(MapCache.getDebugInfo());
+	}
+}
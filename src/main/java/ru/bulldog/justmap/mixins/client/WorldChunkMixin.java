@@ -0,0 +1,28 @@
+package ru.bulldog.justmap.mixins.client;
+
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+import ru.bulldog.justmap.map.data.MapCache;
+
+@Mixin(WorldChunk.class)
+public abstract class WorldChunkMixin {
+	
+	@Final
+	@Shadow
+	private World world;
+	
+	@Inject(method = "setBlockState", at = @At("RETURN"))
+	public void onSetBlockState(BlockPos pos, BlockState state, boolean moved, CallbackInfoReturnable<BlockState> cir) {
+		if (cir.getReturnValue() == null || !world.isClient) return;
+		MapCache.markColumnDirty(world, pos.getX(), pos.getZ());
+	}
+}
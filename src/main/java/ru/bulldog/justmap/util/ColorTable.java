@@ -0,0 +1,142 @@
+package ru.bulldog.justmap.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
+import net.fabricmc.fabric.api.resource.ResourceReloadListenerKeys;
+import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.resource.ResourcePackProfile;
+import net.minecraft.resource.ResourceType;
+import net.minecraft.util.Identifier;
+
+import ru.bulldog.justmap.JustMap;
+
+public class ColorTable {
+	private ColorTable() {}
+
+	private final static int VERSION = 1;
+	private final static int UNKNOWN = Integer.MIN_VALUE;
+
+	private static volatile int[] colors;
+	private static volatile int generation = 0;
+
+	public static void registerReloadListener() {
+		ResourceManagerHelper.get(ResourceType.CLIENT_RESOURCES).registerReloadListener(new SimpleSynchronousResourceReloadListener() {
+			@Override
+			public Identifier getFabricId() {
+				return new Identifier(JustMap.MODID, "state_colors");
+			}
+
+			@Override
+			public Collection<Identifier> getFabricDependencies() {
+				return Collections.singletonList(ResourceReloadListenerKeys.MODELS);
+			}
+
+			@Override
+			public void apply(ResourceManager manager) {
+				ColorTable.reload();
+			}
+		});
+	}
+
+	public static int getColor(BlockState state) {
+		int stateId = Block.getRawIdFromState(state);
+		int[] table = colors;
+		if (table == null || stateId < 0 || stateId >= table.length) {
+			return ColorUtil.extractColor(state);
+		}
+
+		int color = table[stateId];
+		if (color == UNKNOWN) {
+			color = ColorUtil.extractColor(state);
+			table[stateId] = color;
+		}
+
+		return color;
+	}
+
+	private static void reload() {
+		int current = ++generation;
+		int size = Block.STATE_IDS.size();
+		int[] table = new int[size];
+		for (int i = 0; i < size; i++) {
+			table[i] = UNKNOWN;
+		}
+		colors = table;
+
+		File colorsDir = new File(StorageUtil.MAP_DIR, "colors/");
+		File tableFile = new File(colorsDir, String.format("%s.dat", packsHash(size)));
+		JustMap.WORKER.execute(() -> {
+			if (loadTable(tableFile, table)) return;
+
+			for (int i = 0; i < size; i++) {
+				if (current != generation) return;
+				if (table[i] != UNKNOWN) continue;
+
+				BlockState state = Block.STATE_IDS.get(i);
+				if (state == null) continue;
+
+				try {
+					table[i] = ColorUtil.extractColor(state);
+				} catch (Exception ex) {
+					table[i] = -1;
+				}
+			}
+			saveTable(tableFile, table);
+		});
+	}
+
+	private static String packsHash(int stateCount) {
+		MinecraftClient minecraft = MinecraftClient.getInstance();
+		String packs = minecraft.getResourcePackManager().getEnabledProfiles().stream()
+				.map(ResourcePackProfile::getName)
+				.collect(Collectors.joining(";"));
+		String key = String.format("%d;%d;%s", VERSION, stateCount, packs);
+
+		return Integer.toHexString(key.hashCode());
+	}
+
+	private static boolean loadTable(File tableFile, int[] table) {
+		if (!tableFile.exists()) return false;
+
+		try (InputStream input = new FileInputStream(tableFile)) {
+			int[] stored = NbtIo.readCompressed(input).getIntArray("Colors");
+			if (stored.length != table.length) return false;
+
+			System.arraycopy(stored, 0, table, 0, stored.length);
+			return true;
+		} catch (Exception ex) {
+			JustMap.LOGGER.logWarning("Can't load block colors table", tableFile, ex);
+			return false;
+		}
+	}
+
+	private static void saveTable(File tableFile, int[] table) {
+		File colorsDir = tableFile.getParentFile();
+		if (!colorsDir.exists()) {
+			colorsDir.mkdirs();
+		}
+
+		CompoundTag data = new CompoundTag();
+		data.putIntArray("Colors", table);
+		try (OutputStream output = new FileOutputStream(tableFile)) {
+			NbtIo.writeCompressed(data, output);
+		} catch (Exception ex) {
+			JustMap.LOGGER.logWarning("Can't save block colors table", tableFile, ex);
+		}
+	}
+}
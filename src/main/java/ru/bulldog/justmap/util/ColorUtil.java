@@ -1,8 +1,6 @@
 package ru.bulldog.justmap.util;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 import net.fabricmc.fabric.impl.client.indigo.renderer.helper.ColorHelper;
@@ -27,11 +25,11 @@ import net.minecraft.fluid.FluidState;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
-import net.minecraft.world.World;
-import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.BlockRenderView;
 
 import ru.bulldog.justmap.JustMap;
 import ru.bulldog.justmap.client.config.ClientParams;
+import ru.bulldog.justmap.map.data.ChunkSnapshot;
 import ru.bulldog.justmap.util.math.MathUtil;
 
 public class ColorUtil {
@@ -39,8 +37,8 @@ public class ColorUtil {
 	private static MinecraftClient minecraft = MinecraftClient.getInstance();	
 	private static BlockModels blockModels = minecraft.getBlockRenderManager().getModels();	
 	private static FluidRenderHandlerRegistryImpl fluidRenderHandlerRegistry = FluidRenderHandlerRegistryImpl.INSTANCE;	
-	private static Map<BlockState, Integer> colorCache = new HashMap<>();	
-	private static float[] floatBuffer = new float[3];
+	private static volatile Shading shading;
+	private static int shadingCounter = 0;
 	
 	public static int[] toIntArray(int color) {
 		return new int[] {
@@ -52,17 +50,17 @@ public class ColorUtil {
 	}
 	
 	public static float[] toFloatArray(int color) {
-		floatBuffer[0] = ((color >> 16 & 255) / 255.0F);
-		floatBuffer[1] = ((color >> 8 & 255) / 255.0F);
-		floatBuffer[2] = ((color & 255) / 255.0F);
-		
-		return floatBuffer;
+		return new float[] {
+			(color >> 16 & 255) / 255.0F,
+			(color >> 8 & 255) / 255.0F,
+			(color & 255) / 255.0F
+		};
 	}
 	
 	public static float[] RGBtoHSB(int r, int g, int b, float[] hsbvals) {
 		float hue, saturation, brightness;
 		if (hsbvals == null) {
-			hsbvals = floatBuffer;
+			hsbvals = new float[3];
 		}
 		int cmax = (r > g) ? r : g;
 		if (b > cmax) cmax = b;
@@ -183,22 +181,25 @@ public class ColorUtil {
 		int r = color & 255;
 		return a << 24 | r << 16 | g << 8 | b;
 	}
-	
-	public static int colorBrigtness(int color, float val) {
-		RGBtoHSB((color >> 16) & 255, (color >> 8) & 255, color & 255, floatBuffer);
-		floatBuffer[2] += val / 10.0F;
-		floatBuffer[2] = MathUtil.clamp(floatBuffer[2], 0.0F, 1.0F);
-		return HSBtoRGB(floatBuffer[0], floatBuffer[1], floatBuffer[2]);
+
+	public static int toRGB565(int color) {
+		return ((color >> 8) & 0xF800) | ((color >> 5) & 0x07E0) | ((color >> 3) & 0x001F);
 	}
-	
-	private static int getStateColor(BlockState state) {
-		if (colorCache.containsKey(state)) {
-			return colorCache.get(state);
-		}		
-		return extractColor(state);
+
+	public static int RGB565toARGB(int color) {
+		int r = (color >> 11) & 31;
+		int g = (color >> 5) & 63;
+		int b = color & 31;
+		return 0xFF000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+	}
+
+	public static int colorBrigtness(int color, float val) {
+		float[] hsb = RGBtoHSB((color >> 16) & 255, (color >> 8) & 255, color & 255, null);
+		hsb[2] = MathUtil.clamp(hsb[2] + val / 10.0F, 0.0F, 1.0F);
+		return HSBtoRGB(hsb[0], hsb[1], hsb[2]);
 	}
 	
-	private static int extractColor(BlockState state) {
+	static int extractColor(BlockState state) {
 		List<BakedQuad> quads = blockModels.getModel(state).getQuads(state, Direction.UP, new Random());		
 		
 		Identifier blockSprite;
@@ -227,10 +228,7 @@ public class ColorUtil {
 		image.close();
 		
 		if (pixels > 0) {
-			int color = ((int) (r / pixels)) << 16 | ((int) (g / pixels)) << 8 | (int) (b / pixels);
-			colorCache.put(state, color);
-			
-			return color;
+			return ((int) (r / pixels)) << 16 | ((int) (g / pixels)) << 8 | (int) (b / pixels);
 		}
 		
 		return -1;
@@ -240,21 +238,39 @@ public class ColorUtil {
 		return colorBrigtness(ColorHelper.multiplyColor(color, tint), 1.5F);
 	}
 	
-	public static int proccessColor(int color, int heightDiff, float topoLevel) {
-		RGBtoHSB((color >> 16) & 255, (color >> 8) & 255, color & 255, floatBuffer);
-		floatBuffer[1] += ClientParams.mapSaturation / 100.0F;
-		floatBuffer[1] = MathUtil.clamp(floatBuffer[1], 0.0F, 1.0F);
-		floatBuffer[2] += ClientParams.mapBrightness / 100.0F;
-		floatBuffer[2] = MathUtil.clamp(floatBuffer[2], 0.0F, 1.0F);
-		if (ClientParams.showTerrain && heightDiff != 0) {
-			floatBuffer[2] += heightDiff / 10.0F;
-			floatBuffer[2] = MathUtil.clamp(floatBuffer[2], 0.0F, 1.0F);
+	public static void proccessColors(int[] colors, int[] shade, int[] result) {
+		Shading shading = getShading();
+		for (int i = 0; i < colors.length; i++) {
+			int relief = shade[i];
+			if ((relief >>> 24) == 0) {
+				result[i] = colors[i];
+				continue;
+			}
+			int heightDiff = ((relief >> 16) & 255) - 128;
+			int topoLevel = ((relief >> 8) & 255) - 128;
+			result[i] = shading.apply(colors[i], heightDiff, topoLevel, relief & 255);
 		}
-		if (ClientParams.showTopography && topoLevel != 0) {
-			floatBuffer[2] += MathUtil.clamp(topoLevel, -0.75F, 0.1F);
-			floatBuffer[2] = MathUtil.clamp(floatBuffer[2], 0.0F, 1.0F);
+	}
+	
+	public static int shadingVersion() {
+		return getShading().version;
+	}
+	
+	private static Shading getShading() {
+		Shading current = shading;
+		if (current == null || !current.actual()) {
+			current = updateShading();
 		}
-		return HSBtoRGB(floatBuffer[0], floatBuffer[1], floatBuffer[2]);
+		
+		return current;
+	}
+	
+	private static synchronized Shading updateShading() {
+		if (shading == null || !shading.actual()) {
+			shading = new Shading(++shadingCounter);
+		}
+		
+		return shading;
 	}
 	
 	private static int proccessColor(int blockColor, int textureColor, int defaultColor) {
@@ -266,17 +282,15 @@ public class ColorUtil {
 		return textureColor;
 	}
 	
-	private static int fluidColor(World world, BlockState state, BlockPos pos, int defColor) {
+	private static int fluidColor(BlockRenderView world, BlockState state, BlockPos pos, int defColor) {
 		FluidState fluidState = state.getBlock().getFluidState(state);
 		int fcolor = fluidRenderHandlerRegistry.get(fluidState.getFluid()).getFluidColor(world, pos, fluidState);
 		return fcolor != -1 ? fcolor : defColor;
 	}
 	
-	public static int blockColor(WorldChunk worldChunk, BlockPos pos) {
-		World world = worldChunk.getWorld();
-		BlockPos overPos = new BlockPos(pos.getX(), pos.getY() + 1, pos.getZ());
-		BlockState overState = worldChunk.getBlockState(overPos);
-		BlockState blockState = worldChunk.getBlockState(pos);
+	public static int blockColor(ChunkSnapshot world, BlockPos pos) {
+		BlockState overState = world.getBlockState(pos.getX(), pos.getY() + 1, pos.getZ());
+		BlockState blockState = world.getBlockState(pos.getX(), pos.getY(), pos.getZ());
 		
 		boolean waterTint = ClientParams.alternateColorRender && ClientParams.waterTint;
 		boolean skipWater = !(ClientParams.hideWater || waterTint);
@@ -298,11 +312,11 @@ public class ColorUtil {
 		return -1;
 	}
 	
-	public static int blockColor(World world, BlockState state, BlockPos pos) {
+	public static int blockColor(BlockRenderView world, BlockState state, BlockPos pos) {
 		int materialColor = state.getTopMaterialColor(world, pos).color;
 		if (ClientParams.alternateColorRender) {
 			int blockColor = minecraft.getBlockColors().getColor(state, world, pos, Colors.LIGHT);
-			int textureColor = getStateColor(state);
+			int textureColor = ColorTable.getColor(state);
 			
 			Block block = state.getBlock();
 			if (block instanceof VineBlock) {
@@ -328,4 +342,84 @@ public class ColorUtil {
 		
 		return materialColor;
 	}
-}
\ No newline at end of file
+	
+	private final static class Shading {
+		private final static float[] RECIPROCAL = new float[256];
+		
+		static {
+			for (int i = 1; i < 256; i++) {
+				RECIPROCAL[i] = 1.0F / i;
+			}
+		}
+		
+		private final int version;
+		private final int saturation;
+		private final int brightness;
+		private final int terrainStrength;
+		private final boolean showTerrain;
+		private final boolean showTopography;
+		private final float saturationShift;
+		private final float brightnessShift;
+		private final float[] terrainShift = new float[256];
+		private final float[] topoShift = new float[256];
+		private final float[] depthScale = new float[256];
+		
+		private Shading(int version) {
+			this.version = version;
+			this.saturation = ClientParams.mapSaturation;
+			this.brightness = ClientParams.mapBrightness;
+			this.terrainStrength = ClientParams.terrainStrength;
+			this.showTerrain = ClientParams.showTerrain;
+			this.showTopography = ClientParams.showTopography;
+			this.saturationShift = saturation / 100.0F;
+			this.brightnessShift = brightness / 100.0F;
+			
+			for (int i = -128; i < 128; i++) {
+				if (showTerrain) {
+					this.terrainShift[i + 128] = MathUtil.clamp(i, -terrainStrength, terrainStrength) / 10.0F;
+				}
+				if (showTopography) {
+					this.topoShift[i + 128] = MathUtil.clamp(i / 100.0F, -0.75F, 0.1F);
+				}
+				this.depthScale[i + 128] = showTerrain ? 1.0F - Math.min(i + 128, 30) / 60.0F : 1.0F;
+			}
+		}
+		
+		private boolean actual() {
+			return saturation == ClientParams.mapSaturation &&
+				   brightness == ClientParams.mapBrightness &&
+				   terrainStrength == ClientParams.terrainStrength &&
+				   showTerrain == ClientParams.showTerrain &&
+				   showTopography == ClientParams.showTopography;
+		}
+		
+		private int apply(int color, int heightDiff, int topoLevel, int depth) {
+			int r = (color >> 16) & 255;
+			int g = (color >> 8) & 255;
+			int b = color & 255;
+			int max = Math.max(r, Math.max(g, b));
+			int min = Math.min(r, Math.min(g, b));
+			
+			float sat = max != 0 ? (max - min) * RECIPROCAL[max] : 0.0F;
+			sat = MathUtil.clamp(sat + saturationShift, 0.0F, 1.0F);
+			float val = MathUtil.clamp(max / 255.0F + brightnessShift, 0.0F, 1.0F);
+			val = MathUtil.clamp(val + terrainShift[(heightDiff + 128) & 255], 0.0F, 1.0F);
+			val = MathUtil.clamp(val + topoShift[(topoLevel + 128) & 255], 0.0F, 1.0F);
+			val *= depthScale[depth & 255];
+			
+			float scale = val * 255.0F;
+			if (max == min) {
+				int red = (int) (scale + 0.5F);
+				int other = (int) (scale * (1.0F - sat) + 0.5F);
+				return 0xFF000000 | (red << 16) | (other << 8) | other;
+			}
+			
+			float range = RECIPROCAL[max - min];
+			int red = (int) (scale * (1.0F - sat * (max - r) * range) + 0.5F);
+			int green = (int) (scale * (1.0F - sat * (max - g) * range) + 0.5F);
+			int blue = (int) (scale * (1.0F - sat * (max - b) * range) + 0.5F);
+			
+			return 0xFF000000 | (red << 16) | (green << 8) | blue;
+		}
+	}
+}
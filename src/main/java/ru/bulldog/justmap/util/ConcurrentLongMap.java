@@ -0,0 +1,91 @@
+package ru.bulldog.justmap.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongFunction;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+public class ConcurrentLongMap<V> {
+
+	private final static int SEGMENTS = 16;
+
+	private final Long2ObjectOpenHashMap<V>[] segments;
+
+	@SuppressWarnings("unchecked")
+	public ConcurrentLongMap() {
+		this.segments = new Long2ObjectOpenHashMap[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Long2ObjectOpenHashMap<>();
+		}
+	}
+
+	private Long2ObjectOpenHashMap<V> segment(long key) {
+		return this.segments[(int) HashCommon.mix(key) & (SEGMENTS - 1)];
+	}
+
+	public V get(long key) {
+		Long2ObjectOpenHashMap<V> segment = this.segment(key);
+		synchronized (segment) {
+			return segment.get(key);
+		}
+	}
+
+	public V computeIfAbsent(long key, LongFunction<V> function) {
+		Long2ObjectOpenHashMap<V> segment = this.segment(key);
+		synchronized (segment) {
+			V value = segment.get(key);
+			if (value == null) {
+				value = function.apply(key);
+				segment.put(key, value);
+			}
+
+			return value;
+		}
+	}
+
+	public V remove(long key) {
+		Long2ObjectOpenHashMap<V> segment = this.segment(key);
+		synchronized (segment) {
+			return segment.remove(key);
+		}
+	}
+
+	public boolean remove(long key, V value) {
+		Long2ObjectOpenHashMap<V> segment = this.segment(key);
+		synchronized (segment) {
+			return segment.remove(key, value);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Long2ObjectOpenHashMap<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	public List<V> values() {
+		List<V> values = new ArrayList<>();
+		for (Long2ObjectOpenHashMap<V> segment : segments) {
+			synchronized (segment) {
+				values.addAll(segment.values());
+			}
+		}
+
+		return values;
+	}
+
+	public void clear() {
+		for (Long2ObjectOpenHashMap<V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+}
@@ -2,6 +2,8 @@ package ru.bulldog.justmap.util;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import ru.bulldog.justmap.JustMap;
 
@@ -116,4 +118,86 @@ public class ImageUtil {
 	public static NativeImage fromBufferedImage(BufferedImage image) {
 		return null;
 	}
+	
+	public static ByteBuffer compressDXT1(int[] argb, int width, int height) {
+		ByteBuffer data = ByteBuffer.allocateDirect((width >> 2) * (height >> 2) * 8).order(ByteOrder.LITTLE_ENDIAN);
+		int[] block = new int[16];
+		int[] palette = new int[4];
+		for (int y = 0; y < height; y += 4) {
+			for (int x = 0; x < width; x += 4) {
+				int minR = 255, minG = 255, minB = 255;
+				int maxR = 0, maxG = 0, maxB = 0;
+				for (int i = 0; i < 16; i++) {
+					int color = argb[x + (i & 3) + (y + (i >> 2)) * width];
+					int r = (color >> 16) & 255;
+					int g = (color >> 8) & 255;
+					int b = color & 255;
+					minR = Math.min(minR, r); maxR = Math.max(maxR, r);
+					minG = Math.min(minG, g); maxG = Math.max(maxG, g);
+					minB = Math.min(minB, b); maxB = Math.max(maxB, b);
+					block[i] = color;
+				}
+				long encoded = 0;
+				long bestError = Long.MAX_VALUE;
+				for (int diagonal = 0; diagonal < 4 && bestError > 0; diagonal++) {
+					boolean flipG = (diagonal & 1) != 0;
+					boolean flipB = (diagonal & 2) != 0;
+					int color0 = ColorUtil.toRGB565(maxR << 16 | (flipG ? minG : maxG) << 8 | (flipB ? minB : maxB));
+					int color1 = ColorUtil.toRGB565(minR << 16 | (flipG ? maxG : minG) << 8 | (flipB ? maxB : minB));
+					if (color0 < color1) {
+						int swap = color0;
+						color0 = color1;
+						color1 = swap;
+					}
+					palette[0] = ColorUtil.RGB565toARGB(color0);
+					palette[1] = ColorUtil.RGB565toARGB(color1);
+					palette[2] = blend(palette[0], palette[1]);
+					palette[3] = blend(palette[1], palette[0]);
+					int count = color0 != color1 ? 4 : 1;
+					int indices = 0;
+					long error = 0;
+					for (int i = 0; i < 16; i++) {
+						int index = closest(palette, count, block[i]);
+						indices |= index << (i << 1);
+						error += distance(palette[index], block[i]);
+					}
+					if (error < bestError) {
+						bestError = error;
+						encoded = color0 | (long) color1 << 16 | (indices & 0xFFFFFFFFL) << 32;
+					}
+				}
+				data.putLong(encoded);
+			}
+		}
+		data.flip();
+		
+		return data;
+	}
+	
+	private static int blend(int major, int minor) {
+		int r = (((major >> 16) & 255) * 2 + ((minor >> 16) & 255)) / 3;
+		int g = (((major >> 8) & 255) * 2 + ((minor >> 8) & 255)) / 3;
+		int b = ((major & 255) * 2 + (minor & 255)) / 3;
+		return r << 16 | g << 8 | b;
+	}
+	
+	private static int closest(int[] palette, int count, int color) {
+		int index = 0;
+		int best = Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			int distance = distance(palette[i], color);
+			if (distance < best) {
+				best = distance;
+				index = i;
+			}
+		}
+		return index;
+	}
+	
+	private static int distance(int first, int second) {
+		int dr = ((first >> 16) & 255) - ((second >> 16) & 255);
+		int dg = ((first >> 8) & 255) - ((second >> 8) & 255);
+		int db = (first & 255) - (second & 255);
+		return dr * dr + dg * dg + db * db;
+	}
 }
\ No newline at end of file
@@ -1,7 +1,10 @@
 package ru.bulldog.justmap.util;
 
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.entity.Entity;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Vec3d;
+import ru.bulldog.justmap.util.math.MathUtil;
 
 public class PosUtil {
 	private static MinecraftClient minecraft = MinecraftClient.getInstance();
@@ -33,6 +36,34 @@ public class PosUtil {
 		return minecraft.getCameraEntity().prevZ + (minecraft.getCameraEntity().getZ() - minecraft.getCameraEntity().prevZ) * (double) minecraft.getTickDelta();
 	}
 	
+	public static long chunkPriority(int chunkX, int chunkZ) {
+		Entity camera = minecraft.getCameraEntity();
+		if (camera == null) return 0;
+		
+		double dx = (chunkX << 4) + 8 - camera.getX();
+		double dz = (chunkZ << 4) + 8 - camera.getZ();
+		double dist = dx * dx + dz * dz;
+		
+		int direction = 0;
+		if (dist > 0.0) {
+			Vec3d look = camera.getRotationVector();
+			double dot = (dx * look.x + dz * look.z) / Math.sqrt(dist);
+			direction = MathUtil.clamp((int) ((1.0 - dot) * 2.0), 0, 3);
+		}
+		
+		return ((long) (dist / 256.0) << 2) | direction;
+	}
+	
+	public static int chunkDistance(int chunkX, int chunkZ) {
+		Entity camera = minecraft.getCameraEntity();
+		if (camera == null) return 0;
+		
+		int dx = chunkX - ((int) Math.floor(camera.getX()) >> 4);
+		int dz = chunkZ - ((int) Math.floor(camera.getZ()) >> 4);
+		
+		return Math.max(Math.abs(dx), Math.abs(dz));
+	}
+	
 	public static String posToString(BlockPos pos) {
 		return posToString(pos.getX(), pos.getY(), pos.getZ());
 	}
@@ -1,10 +1,17 @@
 package ru.bulldog.justmap.util;
 
+import java.util.Map;
+import java.util.Optional;
+
+import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.Material;
 import net.minecraft.state.property.Properties;
+import net.minecraft.state.property.Property;
 import net.minecraft.tag.FluidTags;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.registry.Registry;
 
 public class StateUtil {
 	public static final BlockState AIR = Blocks.AIR.getDefaultState();
@@ -45,4 +52,52 @@ public class StateUtil {
 		
 		return isSeaweed(state);
 	}
+	
+	public static String stateToString(BlockState state) {
+		StringBuilder builder = new StringBuilder(Registry.BLOCK.getId(state.getBlock()).toString());
+		if (!state.getEntries().isEmpty()) {
+			builder.append('[');
+			boolean first = true;
+			for (Map.Entry<Property<?>, Comparable<?>> entry : state.getEntries().entrySet()) {
+				if (!first) builder.append(',');
+				builder.append(entry.getKey().getName()).append('=');
+				builder.append(valueName(entry.getKey(), entry.getValue()));
+				first = false;
+			}
+			builder.append(']');
+		}
+		
+		return builder.toString();
+	}
+	
+	public static BlockState stateFromString(String value) {
+		int start = value.indexOf('[');
+		String blockId = start != -1 ? value.substring(0, start) : value;
+		Block block = Registry.BLOCK.get(new Identifier(blockId));
+		BlockState state = block.getDefaultState();
+		if (start == -1) return state;
+		
+		String[] properties = value.substring(start + 1, value.length() - 1).split(",");
+		for (String property : properties) {
+			int split = property.indexOf('=');
+			if (split == -1) continue;
+			
+			Property<?> stateProperty = block.getStateManager().getProperty(property.substring(0, split));
+			if (stateProperty != null) {
+				state = withValue(state, stateProperty, property.substring(split + 1));
+			}
+		}
+		
+		return state;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T extends Comparable<T>> String valueName(Property<T> property, Comparable<?> value) {
+		return property.name((T) value);
+	}
+	
+	private static <T extends Comparable<T>> BlockState withValue(BlockState state, Property<T> property, String value) {
+		Optional<T> parsed = property.parse(value);
+		return parsed.isPresent() ? state.with(property, parsed.get()) : state;
+	}
 }
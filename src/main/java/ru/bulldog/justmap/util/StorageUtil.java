@@ -1,10 +1,11 @@
 package ru.bulldog.justmap.util;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ServerInfo;
-import net.minecraft.nbt.CompoundTag;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.registry.RegistryKey;
@@ -16,34 +17,30 @@ public class StorageUtil {
 	private static MinecraftClient minecraft = MinecraftClient.getInstance();	
 	public final static File MAP_DIR = new File(minecraft.runDirectory, "justmap/");
 	
-	private static ChunkStorage storage;
-	private static File storageDir;
+	private static volatile ChunkStorage storage;
+	private static volatile File storageDir;
 	private static File filesDir = new File(MAP_DIR, "undefined/");	
 	private static String currentDim = "unknown";
 	
-	public static synchronized CompoundTag getCache(ChunkPos pos) {
+	public static CompletableFuture<ByteBuffer> getCacheAsync(ChunkPos pos) {
 		if (storage == null) updateCacheStorage();
 		
-		try {
-			CompoundTag data = storage.getNbt(storageDir, pos);
-			return data != null ? data : new CompoundTag();
-		} catch (Exception ex) {
-			return new CompoundTag();
-		}		
+		return storage.getDataAsync(storageDir, pos).exceptionally(ex -> null);
 	}
 	
-	public static synchronized void saveCache(ChunkPos pos, CompoundTag data) {
+	public static void saveCache(ChunkPos pos, byte[] data) {
 		if (storage == null) updateCacheStorage();
-		storage.setTagAt(storageDir, pos, data);
+		storage.setData(storageDir, pos, data);
 	}
 	
-	public static void updateCacheStorage() {
-		storageDir = new File(cacheDir(), "chunk-data/");
+	public static synchronized void updateCacheStorage() {
+		File dir = new File(cacheDir(), "chunk-data/");
 
-		if (!storageDir.exists()) {
-			storageDir.mkdirs();
+		if (!dir.exists()) {
+			dir.mkdirs();
 		}		
 		
+		storageDir = dir;
 		if (storage == null) storage = new ChunkStorage();
 	}
 	
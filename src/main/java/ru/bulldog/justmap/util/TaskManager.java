@@ -2,87 +2,194 @@ package ru.bulldog.justmap.util;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 
 import ru.bulldog.justmap.JustMap;
 
 public class TaskManager implements Executor {
-    private final Queue<Runnable> workQueue = new ConcurrentLinkedQueue<>();
-    private final Thread worker;
-    private boolean running = true;
-    
-    private String name = JustMap.MODID;
-    
-    private static Map<String, TaskManager> managers = new HashMap<>();
-    
-    public static TaskManager getManager(String name) {
-    	if (managers.containsKey(name)) {
-    		TaskManager manager = managers.get(name);
-    		if (!manager.isRunning()) {
-    			manager = new TaskManager(name);
-    			managers.replace(name, manager);
-    		}
-    		
-    		return manager;
-    	}
-    	
-    	TaskManager manager = new TaskManager(name);
-    	managers.put(name, manager);
-    	
-    	return manager;
-    }
-    
-    public static void shutdown() {
-    	managers.forEach((name, manager) -> {
-    		if (manager.isRunning()) manager.stop();
-    	});
-    }
-    
-    private TaskManager(String name) {
-    	this.name += "-" + name;
-    	this.worker = new Thread(this::work, this.name);
-    	this.worker.start();
-    }
-
-    @Override
-    public void execute(Runnable command) {
-    	this.workQueue.offer(command);
-    	LockSupport.unpark(this.worker);
-    }
-    
-    public <T> CompletableFuture<T> run(Function<CompletableFuture<T>, Runnable> function) {
+	private final static long NO_KEY = Long.MIN_VALUE;
+
+	private final PriorityBlockingQueue<Task<?>> workQueue = new PriorityBlockingQueue<>();
+	private final Map<Long, Task<?>> pending = new ConcurrentHashMap<>();
+	private final AtomicInteger workers = new AtomicInteger();
+	private final AtomicInteger threadId = new AtomicInteger();
+	private final AtomicLong order = new AtomicLong();
+	private volatile boolean running = true;
+	private volatile int threads = 0;
+
+	private String name = JustMap.MODID;
+
+	private static Map<String, TaskManager> managers = new HashMap<>();
+
+	public static TaskManager getManager(String name) {
+		return getManager(name, 1);
+	}
+
+	public static synchronized TaskManager getManager(String name, int threads) {
+		if (managers.containsKey(name)) {
+			TaskManager manager = managers.get(name);
+			if (!manager.isRunning()) {
+				manager = new TaskManager(name, threads);
+				managers.replace(name, manager);
+			}
+
+			return manager;
+		}
+
+		TaskManager manager = new TaskManager(name, threads);
+		managers.put(name, manager);
+
+		return manager;
+	}
+
+	public static synchronized void shutdown() {
+		managers.forEach((name, manager) -> {
+			if (manager.isRunning()) manager.stop();
+		});
+	}
+
+	private TaskManager(String name, int threads) {
+		this.name += "-" + name;
+		this.setThreads(threads);
+	}
+
+	public synchronized void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (this.threads == threads) return;
+
+		this.threads = threads;
+		while (workers.get() < threads) {
+			this.workers.incrementAndGet();
+			Thread worker = new Thread(this::work, this.name + "-" + threadId.incrementAndGet());
+			worker.start();
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		this.execute(NO_KEY, Long.MAX_VALUE, () -> true, command);
+	}
+
+	public CompletableFuture<Void> execute(long key, long priority, BooleanSupplier valid, Runnable command) {
+		return this.run(key, priority, valid, future -> () -> {
+			command.run();
+			future.complete(null);
+		});
+	}
+
+	public <T> CompletableFuture<T> run(Function<CompletableFuture<T>, Runnable> function) {
+		return this.run(NO_KEY, Long.MAX_VALUE, () -> true, function);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> CompletableFuture<T> run(long key, long priority, BooleanSupplier valid, Function<CompletableFuture<T>, Runnable> function) {
+		if (key == NO_KEY) {
+			return this.submit(key, priority, valid, function);
+		}
+		synchronized (pending) {
+			Task<?> queued = this.pending.get(key);
+			if (queued != null && !queued.future.isDone()) {
+				this.coalesce(queued, priority, valid);
+				return (CompletableFuture<T>) queued.future;
+			}
+			return this.submit(key, priority, valid, function);
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(long key, long priority, BooleanSupplier valid, Function<CompletableFuture<T>, Runnable> function) {
 		CompletableFuture<T> completableFuture = new CompletableFuture<>();
-		this.execute(function.apply(completableFuture));
+		Task<T> task = new Task<>(key, priority, order.getAndIncrement(), valid, completableFuture);
+		task.command = function.apply(completableFuture);
+		if (key != NO_KEY) {
+			this.pending.put(key, task);
+			completableFuture.whenComplete((result, ex) -> this.pending.remove(key, task));
+		}
+		this.workQueue.offer(task);
+
 		return completableFuture;
 	}
-    
-    public void stop() {
-    	this.execute(() -> {
-    		this.running = false;
-    	});    	
-    }
-    
-    public int queueSize() {
-    	return this.workQueue.size();
-    }
-    
-    public boolean isRunning() {
-    	return this.running;
-    }
-
-    private void work() {
-    	while (running) {
-            Runnable nextTask = workQueue.poll();
-            if (nextTask != null) {
-                nextTask.run();
-            } else {
-            	LockSupport.park("Tasks waiting...");
-            }
-        }
-    }
+
+	private void coalesce(Task<?> task, long priority, BooleanSupplier valid) {
+		BooleanSupplier queuedValid = task.valid;
+		task.valid = () -> queuedValid.getAsBoolean() || valid.getAsBoolean();
+		if (priority < task.priority && this.workQueue.remove(task)) {
+			task.priority = priority;
+			this.workQueue.offer(task);
+		}
+	}
+
+	public void stop() {
+		this.execute(() -> {
+			this.running = false;
+		});
+	}
+
+	public int queueSize() {
+		return this.workQueue.size();
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	private boolean retire() {
+		int current = workers.get();
+		return current > threads && workers.compareAndSet(current, current - 1);
+	}
+
+	private void work() {
+		while (running) {
+			if (this.retire()) return;
+
+			Task<?> nextTask;
+			try {
+				nextTask = workQueue.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				break;
+			}
+			if (nextTask == null) continue;
+			if (!nextTask.valid.getAsBoolean()) {
+				nextTask.future.cancel(false);
+				continue;
+			}
+			try {
+				nextTask.command.run();
+			} catch (Exception ex) {
+				JustMap.LOGGER.logError("Task failed in " + name, ex);
+				nextTask.future.completeExceptionally(ex);
+			}
+		}
+		this.workers.decrementAndGet();
+	}
+
+	private static class Task<T> implements Comparable<Task<?>> {
+		private final long key;
+		private final long order;
+		private volatile long priority;
+		private volatile BooleanSupplier valid;
+		private final CompletableFuture<T> future;
+		private Runnable command;
+
+		private Task(long key, long priority, long order, BooleanSupplier valid, CompletableFuture<T> future) {
+			this.key = key;
+			this.priority = priority;
+			this.order = order;
+			this.valid = valid;
+			this.future = future;
+		}
+
+		@Override
+		public int compareTo(Task<?> task) {
+			int result = Long.compare(priority, task.priority);
+			return result != 0 ? result : Long.compare(order, task.order);
+		}
+	}
 }